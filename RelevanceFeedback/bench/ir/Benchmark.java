@@ -0,0 +1,127 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.function.IntSupplier;
+
+
+/**
+ *   Times an operation the way a microbenchmark harness would, without
+ *   needing one on the class path.
+ *
+ *   The operation is first run for a number of warmup iterations, so that
+ *   the JIT has compiled it, and the number of calls in an iteration is
+ *   calibrated so that one iteration takes about ITERATION_MILLIS. The
+ *   measured iterations then give the mean time per call with its standard
+ *   deviation, the bytes allocated per call by the running thread, and the
+ *   number and time of the garbage collections, like the GC profiler of
+ *   JMH. The int returned by every call is folded into a volatile field,
+ *   so the JIT cannot drop the work as dead code.
+ */
+public class Benchmark {
+
+    /** Target duration of an iteration. */
+    static final long ITERATION_MILLIS = 200;
+
+    /** Keeps the results of the calls alive. */
+    static volatile int sink;
+
+    final int warmupIterations;
+    final int iterations;
+
+
+    public Benchmark( int warmupIterations, int iterations ) {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+    }
+
+
+    /** Prints the header of the lines printed by run(). */
+    static void printHeader() {
+        System.out.println( String.format( "%-32s %12s %10s %14s %8s %10s",
+                                           "benchmark", "us/op", "+-", "bytes/op", "gc", "gc ms" ));
+    }
+
+
+    /**
+     *  Measures an operation and prints one line with the results.
+     */
+    public void run( String name, IntSupplier operation ) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        // Warmup, doubling the calls per iteration until one takes long enough
+        int calls = 1;
+        for ( int i=0; i<warmupIterations; i++ ) {
+            long start = System.nanoTime();
+            runCalls( operation, calls );
+            long elapsed = System.nanoTime() - start;
+            while ( elapsed < ITERATION_MILLIS * 1000000L && calls < ( 1 << 30 )) {
+                calls *= 2;
+                elapsed *= 2;
+            }
+        }
+
+        double[] nanosPerCall = new double[iterations];
+        long allocated = 0;
+        long gcCount = -gcCount();
+        long gcMillis = -gcMillis();
+        for ( int i=0; i<iterations; i++ ) {
+            long bytes = threads.getThreadAllocatedBytes( thread );
+            long start = System.nanoTime();
+            runCalls( operation, calls );
+            nanosPerCall[i] = (double)( System.nanoTime() - start ) / calls;
+            allocated += threads.getThreadAllocatedBytes( thread ) - bytes;
+        }
+        gcCount += gcCount();
+        gcMillis += gcMillis();
+
+        double mean = 0;
+        for ( double t : nanosPerCall ) {
+            mean += t;
+        }
+        mean /= iterations;
+        double variance = 0;
+        for ( double t : nanosPerCall ) {
+            variance += ( t - mean ) * ( t - mean );
+        }
+        double deviation = iterations > 1 ? Math.sqrt( variance / ( iterations - 1 )) : 0;
+
+        System.out.println( String.format( "%-32s %12.3f %10.3f %14.1f %8d %10d",
+                                           name, mean / 1000, deviation / 1000, (double) allocated / ( (long) calls * iterations ), gcCount, gcMillis ));
+    }
+
+
+    private static void runCalls( IntSupplier operation, int calls ) {
+        int result = 0;
+        for ( int i=0; i<calls; i++ ) {
+            result += operation.getAsInt();
+        }
+        sink = result;
+    }
+
+
+    private static long gcCount() {
+        long count = 0;
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+            count += Math.max( 0, gc.getCollectionCount() );
+        }
+        return count;
+    }
+
+
+    private static long gcMillis() {
+        long millis = 0;
+        for ( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+            millis += Math.max( 0, gc.getCollectionTime() );
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.function.IntSupplier;
+
+
+/**
+ *   Microbenchmarks of the hot paths of Searcher and RankedSearch on a
+ *   SyntheticIndex: intersection, union, phrase and ranked queries with
+ *   TF_IDF (evaluated term at a time, with MAX_SCORE and with
+ *   BLOCK_MAX_WAND), PAGERANK and COMBINATION.
+ *
+ *   Every benchmark is run on three shapes of query, named by the lengths
+ *   of their postings lists: two long lists, a long and a short one, and
+ *   three lists of medium length. Ranked benchmarks read the first
+ *   Searcher.RESULTS_PER_PAGE results, as the GUI does.
+ *
+ *   Options: -docs, -terms, -maxdf, -skew, -density and -doclength shape
+ *   the index (see SyntheticIndex), -seed seeds it, -warmup and
+ *   -iterations set the number of iterations (see Benchmark),
+ *   -normalization the normalization of ranked queries, and -bench only
+ *   runs the benchmarks whose name contains the given string.
+ */
+public class SearchBenchmark {
+
+    SyntheticIndex generator = new SyntheticIndex();
+    NormalizationType normalizationType = NormalizationType.NUMBER_OF_WORDS;
+    int warmup = 5;
+    int iterations = 10;
+    String filter = "";
+
+    HashedIndex index;
+    Benchmark benchmark;
+
+
+    /** Returns the lengths of the postings lists of a query, as "a+b+...". */
+    String shape( String query ) {
+        StringBuilder shape = new StringBuilder();
+        for ( String term : query.split( " " )) {
+            if ( shape.length() > 0 ) {
+                shape.append( '+' );
+            }
+            shape.append( index.getPostings( term ).size() );
+        }
+        return shape.toString();
+    }
+
+
+    void run( String name, IntSupplier operation ) {
+        if ( name.contains( filter )) {
+            benchmark.run( name, operation );
+        }
+    }
+
+
+    /** Runs a query through a Searcher and reads the head of its result. */
+    static int search( Searcher searcher, Query query, QueryType queryType, RankingType rankingType, NormalizationType normalizationType ) {
+        Postings result = searcher.search( query, queryType, rankingType, normalizationType );
+        if ( result == null ) {
+            return 0;
+        }
+        int sum = result.size();
+        if ( queryType == QueryType.RANKED_QUERY ) {
+            for ( int i=0; i<result.size() && i<Searcher.RESULTS_PER_PAGE; i++ ) {
+                sum += result.get( i ).docID;
+            }
+        }
+        return sum;
+    }
+
+
+    void runAll() {
+        long start = System.currentTimeMillis();
+        index = generator.build();
+        System.out.println( String.format( "Generated %d documents and %d terms in %.1f s (max df %d, skew %.2f, density %.2f)",
+                                           generator.documents, generator.terms, ( System.currentTimeMillis() - start ) / 1000.0,
+                                           generator.maxDocumentFrequency, generator.skew, generator.density ));
+
+        String longList = SyntheticIndex.term( 0 );
+        String longList2 = SyntheticIndex.term( 1 );
+        String shortList = generator.termWithLength( Math.max( 1, generator.maxDocumentFrequency / 200 ));
+        String[] query = {
+            longList + " " + longList2,
+            longList + " " + shortList,
+            generator.termWithLength( generator.maxDocumentFrequency / 20 ) + " "
+            + generator.termWithLength( generator.maxDocumentFrequency / 25 ) + " "
+            + generator.termWithLength( generator.maxDocumentFrequency / 30 )
+        };
+        String[] shape = new String[query.length];
+        for ( int q=0; q<query.length; q++ ) {
+            shape[q] = shape( query[q] );
+        }
+
+        Searcher searcher = new Searcher( index, null, null );
+        Searcher maxScore = new Searcher( index, null, null );
+        maxScore.evaluationType = EvaluationType.MAX_SCORE;
+        Searcher blockMaxWand = new Searcher( index, null, null );
+        blockMaxWand.evaluationType = EvaluationType.BLOCK_MAX_WAND;
+
+        benchmark = new Benchmark( warmup, iterations );
+        Benchmark.printHeader();
+        for ( int q=0; q<query.length; q++ ) {
+            Query parsed = new Query( query[q] );
+            ArrayList<Postings> lists = new ArrayList<Postings>();
+            for ( String term : parsed.getQueryTerms() ) {
+                lists.add( index.getPostings( term ));
+            }
+            run( "intersection/" + shape[q], () -> search( searcher, parsed, QueryType.INTERSECTION_QUERY, null, normalizationType ));
+            run( "union/" + shape[q], () -> searcher.postingsUnion( lists, QueryType.INTERSECTION_QUERY ).size() );
+            run( "phrase/" + shape[q], () -> search( searcher, parsed, QueryType.PHRASE_QUERY, null, normalizationType ));
+            run( "tf_idf/" + shape[q], () -> search( searcher, parsed, QueryType.RANKED_QUERY, RankingType.TF_IDF, normalizationType ));
+            run( "tf_idf-max_score/" + shape[q], () -> search( maxScore, parsed, QueryType.RANKED_QUERY, RankingType.TF_IDF, normalizationType ));
+            run( "tf_idf-block_max_wand/" + shape[q], () -> search( blockMaxWand, parsed, QueryType.RANKED_QUERY, RankingType.TF_IDF, normalizationType ));
+            run( "pagerank/" + shape[q], () -> search( searcher, parsed, QueryType.RANKED_QUERY, RankingType.PAGERANK, normalizationType ));
+            run( "combination/" + shape[q], () -> search( searcher, parsed, QueryType.RANKED_QUERY, RankingType.COMBINATION, normalizationType ));
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    public static void main( String[] args ) {
+        SearchBenchmark bench = new SearchBenchmark();
+        SyntheticIndex generator = bench.generator;
+        int i = 0;
+        while ( i < args.length ) {
+            if ( i + 1 >= args.length ) {
+                System.err.println( "Unknown option: " + args[i] );
+                return;
+            }
+            String value = args[i + 1];
+            if ( "-docs".equals( args[i] )) {
+                generator.documents = Integer.parseInt( value );
+            } else if ( "-terms".equals( args[i] )) {
+                generator.terms = Integer.parseInt( value );
+            } else if ( "-maxdf".equals( args[i] )) {
+                generator.maxDocumentFrequency = Integer.parseInt( value );
+            } else if ( "-skew".equals( args[i] )) {
+                generator.skew = Double.parseDouble( value );
+            } else if ( "-density".equals( args[i] )) {
+                generator.density = Math.max( 1.0, Double.parseDouble( value ));
+            } else if ( "-doclength".equals( args[i] )) {
+                generator.documentLength = Integer.parseInt( value );
+            } else if ( "-seed".equals( args[i] )) {
+                generator.seed = Long.parseLong( value );
+            } else if ( "-warmup".equals( args[i] )) {
+                bench.warmup = Integer.parseInt( value );
+            } else if ( "-iterations".equals( args[i] )) {
+                bench.iterations = Math.max( 1, Integer.parseInt( value ));
+            } else if ( "-normalization".equals( args[i] )) {
+                bench.normalizationType = NormalizationType.valueOf( value.toUpperCase().replace( '-', '_' ));
+            } else if ( "-bench".equals( args[i] )) {
+                bench.filter = value;
+            } else {
+                System.err.println( "Unknown option: " + args[i] );
+                return;
+            }
+            i += 2;
+        }
+        generator.maxDocumentFrequency = Math.min( generator.maxDocumentFrequency, generator.documents );
+        bench.runAll();
+    }
+}
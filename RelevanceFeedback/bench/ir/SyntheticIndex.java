@@ -0,0 +1,133 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ *   Generates a HashedIndex with postings lists of controlled shape, so the
+ *   search code can be measured without a corpus on disk.
+ *
+ *   The terms are named t0, t1, ... by rank. The term of rank r occurs in
+ *   maxDocumentFrequency / (r+1)^skew documents (at least one), chosen at
+ *   random, so skew 1 gives Zipf's law and skew 0 lists of equal length.
+ *   In every document it occurs 1 + a geometric number of times, density
+ *   times on average, at random positions of the document. The documents
+ *   have random lengths around documentLength, and random PageRanks.
+ *
+ *   The same seed gives the same index.
+ */
+public class SyntheticIndex {
+
+    int documents = 20000;
+    int terms = 20000;
+    int maxDocumentFrequency = 10000;
+    double skew = 1.0;
+    double density = 2.0;
+    int documentLength = 300;
+    long seed = 42;
+
+    /** The document frequency of every term, by rank. */
+    int[] documentFrequencies;
+
+
+    /** The name of the term of a rank. */
+    static String term( int rank ) {
+        return "t" + rank;
+    }
+
+
+    /** The document frequency of the term of a rank. */
+    int documentFrequency( int rank ) {
+        return Math.max( 1, Math.min( documents, (int)( maxDocumentFrequency / Math.pow( rank + 1, skew ))));
+    }
+
+
+    /**
+     *  The name of the most frequent term whose list has at most the given
+     *  length.
+     */
+    String termWithLength( int length ) {
+        int rank = 0;
+        while ( rank < terms - 1 && documentFrequencies[rank] > length ) {
+            rank++;
+        }
+        return term( rank );
+    }
+
+
+    public HashedIndex build() {
+        Random random = new Random( seed );
+        HashedIndex index = new HashedIndex();
+        DocumentStore store = index.getDocuments();
+
+        int[] lengths = new int[documents];
+        for ( int d=0; d<documents; d++ ) {
+            lengths[d] = documentLength / 2 + random.nextInt( documentLength + 1 );
+            store.addDocument( d, "doc" + d, lengths[d] );
+            store.setPageRank( d, Math.pow( random.nextDouble(), 3 ));
+        }
+
+        documentFrequencies = new int[terms];
+        double[] squares = new double[documents];
+        for ( int r=0; r<terms; r++ ) {
+            int[] docIDs = randomSortedSet( random, documentFrequency( r ), documents );
+            documentFrequencies[r] = docIDs.length;
+            double idf = Math.log( (double) documents / docIDs.length );
+            String token = term( r );
+            for ( int docID : docIDs ) {
+                int tf = 1;
+                while ( tf < lengths[docID] && random.nextDouble() < 1 - 1 / density ) {
+                    tf++;
+                }
+                int[] offsets = randomSortedSet( random, tf, lengths[docID] );
+                for ( int offset : offsets ) {
+                    index.insert( token, docID, offset );
+                }
+                squares[docID] += ( offsets.length * idf ) * ( offsets.length * idf );
+            }
+        }
+        for ( int d=0; d<documents; d++ ) {
+            store.setEuclideanLength( d, Math.sqrt( squares[d] ));
+        }
+        return index;
+    }
+
+
+    /**
+     *  About n distinct ints in [0, bound), in increasing order. Duplicates
+     *  of a sparse draw are dropped rather than drawn again.
+     */
+    static int[] randomSortedSet( Random random, int n, int bound ) {
+        if ( 4L * n > bound ) {
+            // Dense: keep every value with probability n / bound
+            int[] set = new int[bound];
+            int size = 0;
+            for ( int i=0; i<bound; i++ ) {
+                if ( random.nextInt( bound ) < n ) {
+                    set[size++] = i;
+                }
+            }
+            return size > 0 ? Arrays.copyOf( set, size ) : new int[] { random.nextInt( bound ) };
+        }
+        int[] set = new int[n];
+        for ( int i=0; i<n; i++ ) {
+            set[i] = random.nextInt( bound );
+        }
+        Arrays.sort( set );
+        int size = 0;
+        for ( int i=0; i<n; i++ ) {
+            if ( size == 0 || set[i] != set[size - 1] ) {
+                set[size++] = set[i];
+            }
+        }
+        return Arrays.copyOf( set, size );
+    }
+}
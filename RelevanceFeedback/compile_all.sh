@@ -3,4 +3,4 @@ if ! [ -d classes ];
 then
    mkdir classes
 fi
-javac -cp . -d classes ir/HITSRanker.java ir/NormalizationType.java ir/RankedSearch.java ir/Engine.java ir/HashedIndex.java ir/ScalablePersistentHashedIndex.java ir/HITSRanker.java ir/Index.java ir/Indexer.java ir/KGramIndex.java ir/KGramPostingsEntry.java ir/PersistentHashedIndex.java ir/PostingsEntry.java ir/PostingsList.java ir/Query.java ir/QueryType.java ir/RankingType.java ir/Searcher.java ir/SearchGUI.java ir/SpellChecker.java ir/SpellingOptionsDialog.java ir/Tokenizer.java ir/TokenTest.java 
+javac -cp . -d classes ir/HITSRanker.java ir/NormalizationType.java ir/RankedSearch.java ir/Engine.java ir/HashedIndex.java ir/ScalablePersistentHashedIndex.java ir/HITSRanker.java ir/Index.java ir/Indexer.java ir/KGramIndex.java ir/KGramPostingsEntry.java ir/PersistentHashedIndex.java ir/PostingsEntry.java ir/Postings.java ir/PostingsList.java ir/Query.java ir/QueryType.java ir/RankingType.java ir/Searcher.java ir/SearchGUI.java ir/SpellChecker.java ir/SpellingOptionsDialog.java ir/Tokenizer.java ir/TokenTest.java ir/PostingsCodec.java ir/MappedFile.java ir/ProbeStats.java ir/RankedPostingsList.java ir/ScoreAccumulator.java ir/EvaluationType.java ir/MaxScoreEvaluator.java ir/BlockPostingsList.java ir/BlockMaxWandEvaluator.java ir/DocumentStore.java ir/PostingsCache.java ir/QueryCache.java ir/BatchSearch.java ir/QueryTrace.java ir/IndexingMetrics.java ir/TermDictionary.java 
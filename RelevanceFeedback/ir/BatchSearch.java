@@ -0,0 +1,257 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ *   Runs a file of queries against the engine without the GUI, and reports
+ *   the throughput and the latency of every query type on stderr, with the
+ *   other diagnostics.
+ *
+ *   The options of Engine are taken as they are, so the index is built
+ *   from -d or loaded from disk with -ni. The queries are given with
+ *   -queries, one per line as
+ *
+ *     query type;ranking type;query
+ *
+ *   for instance "ranked;tf_idf;davis campus" or "intersection;;davis
+ *   campus". The ranking type is only read for ranked queries. Empty
+ *   lines and lines starting with # are skipped, and a file without any
+ *   query is rejected.
+ *
+ *   The queries are run -repeat times (default 1) on -querythreads threads
+ *   (default 1), with the normalization given by -normalization (default
+ *   number_of_words). Every search holds the read lock of the index, as
+ *   in the GUI, and reads the first Searcher.RESULTS_PER_PAGE results, since a
+ *   ranked result is only sorted as far as it is read. With the -trace
+ *   option of Engine, every search is traced and the histograms of its
+ *   stages are printed on exit, see QueryTrace. A query that throws is
+ *   reported on stderr, counted as failed and left out of the latencies.
+ */
+public class BatchSearch {
+
+    /** Latencies are reported at these percentiles. */
+    static final double[] PERCENTILES = { 0.50, 0.95, 0.99, 0.999 };
+
+    /** The latency of a query that threw. */
+    static final long FAILED = -1;
+
+    /** One line of the query file. */
+    static class BatchQuery {
+        final QueryType queryType;
+        final RankingType rankingType;
+        final String query;
+
+        BatchQuery( QueryType queryType, RankingType rankingType, String query ) {
+            this.queryType = queryType;
+            this.rankingType = rankingType;
+            this.query = query;
+        }
+    }
+
+    Engine engine;
+    ArrayList<BatchQuery> queries = new ArrayList<BatchQuery>();
+    NormalizationType normalizationType = NormalizationType.NUMBER_OF_WORDS;
+    int threads = 1;
+    int repeat = 1;
+
+
+    /**
+     *  Parses a line of the query file, or returns null for a line to skip.
+     */
+    static BatchQuery parseQuery( String line ) {
+        line = line.trim();
+        if ( line.isEmpty() || line.startsWith( "#" )) {
+            return null;
+        }
+        String[] fields = line.split( ";", 3 );
+        if ( fields.length < 3 ) {
+            throw new IllegalArgumentException( "Expected 'query type;ranking type;query': " + line );
+        }
+        String type = fields[0].trim().toUpperCase();
+        QueryType queryType = QueryType.valueOf( type.endsWith( "_QUERY" ) ? type : type + "_QUERY" );
+        RankingType rankingType = RankingType.TF_IDF;
+        if ( queryType == QueryType.RANKED_QUERY && !fields[1].trim().isEmpty() ) {
+            rankingType = RankingType.valueOf( fields[1].trim().toUpperCase().replace( '-', '_' ));
+        }
+        return new BatchQuery( queryType, rankingType, fields[2].trim() );
+    }
+
+
+    void readQueries( File file ) throws IOException {
+        try ( BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), StandardCharsets.UTF_8 ))) {
+            String line;
+            while (( line = reader.readLine() ) != null ) {
+                BatchQuery query = parseQuery( line );
+                if ( query != null ) {
+                    queries.add( query );
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Runs one query and returns its latency in nanoseconds.
+     */
+    long search( BatchQuery batchQuery ) {
+        long start = System.nanoTime();
+        QueryTrace trace = QueryTrace.begin( batchQuery.query );
+        engine.indexLock.readLock().lock();
+        try {
+            Postings results = engine.searcher.search( new Query( batchQuery.query ), batchQuery.queryType, batchQuery.rankingType, normalizationType );
+            if ( results != null ) {
+                for ( int i=0; i<results.size() && i<Searcher.RESULTS_PER_PAGE; i++ ) {
+                    results.get( i );
+                }
+            }
+        } finally {
+            engine.indexLock.readLock().unlock();
+            if ( trace != null ) {
+                trace.end();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+
+    /**
+     *  Runs a query, and returns its latency or FAILED if it throws.
+     */
+    long tryToSearch( BatchQuery batchQuery ) {
+        try {
+            return search( batchQuery );
+        } catch ( RuntimeException e ) {
+            System.err.println( "Query failed: " + batchQuery.query + ": " + e );
+            return FAILED;
+        }
+    }
+
+
+    /**
+     *  Runs all queries on the thread pool and prints the report.
+     */
+    void run() throws InterruptedException {
+        if ( queries.isEmpty() ) {
+            throw new IllegalStateException( "No queries to run" );
+        }
+        int n = queries.size() * repeat;
+        long[] latencies = new long[n];
+
+        ExecutorService pool = Executors.newFixedThreadPool( threads );
+        long start = System.nanoTime();
+        for ( int i=0; i<n; i++ ) {
+            final int q = i;
+            pool.execute( () -> latencies[q] = tryToSearch( queries.get( q % queries.size() )));
+        }
+        pool.shutdown();
+        pool.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+        double seconds = ( System.nanoTime() - start ) / 1e9;
+
+        int failed = 0;
+        for ( long latency : latencies ) {
+            if ( latency == FAILED ) {
+                failed++;
+            }
+        }
+        System.err.println( String.format( "%d queries on %d threads in %.3f s, %d failed", n, threads, seconds, failed ));
+        System.err.println( String.format( "%-20s %8s %10s %10s %10s %10s %10s %10s",
+                                           "type", "queries", "qps", "mean ms", "p50 ms", "p95 ms", "p99 ms", "p99.9 ms" ));
+        for ( QueryType queryType : QueryType.values() ) {
+            report( queryType.toString(), succeeded( latencies, queryType ), seconds );
+        }
+        report( "ALL", succeeded( latencies, null ), seconds );
+    }
+
+
+    /**
+     *  The latencies of the queries of a type, or of all types if null,
+     *  that did not fail.
+     */
+    long[] succeeded( long[] latencies, QueryType queryType ) {
+        long[] result = new long[latencies.length];
+        int count = 0;
+        for ( int i=0; i<latencies.length; i++ ) {
+            if ( latencies[i] != FAILED && ( queryType == null || queries.get( i % queries.size() ).queryType == queryType )) {
+                result[count++] = latencies[i];
+            }
+        }
+        return Arrays.copyOf( result, count );
+    }
+
+
+    /**
+     *  Prints the throughput and latency percentiles of a set of queries,
+     *  the percentiles by nearest rank. Nothing is printed for no queries.
+     */
+    static void report( String name, long[] latencies, double seconds ) {
+        if ( latencies.length == 0 ) {
+            return;
+        }
+        Arrays.sort( latencies );
+        long sum = 0;
+        for ( long latency : latencies ) {
+            sum += latency;
+        }
+        StringBuilder line = new StringBuilder( String.format( "%-20s %8d %10.1f %10.3f", name, latencies.length,
+                                                               latencies.length / seconds, sum / 1e6 / latencies.length ));
+        for ( double p : PERCENTILES ) {
+            int rank = (int) Math.ceil( p * latencies.length ) - 1;
+            line.append( String.format( " %10.3f", latencies[Math.max( 0, rank )] / 1e6 ));
+        }
+        System.err.println( line );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    public static void main( String[] args ) throws IOException, InterruptedException {
+        BatchSearch batch = new BatchSearch();
+        File queryFile = null;
+        ArrayList<String> engineArgs = new ArrayList<String>();
+        int i = 0;
+        while ( i < args.length ) {
+            if ( "-queries".equals( args[i] ) && i + 1 < args.length ) {
+                queryFile = new File( args[i + 1] );
+                i += 2;
+            } else if ( "-querythreads".equals( args[i] ) && i + 1 < args.length ) {
+                batch.threads = Math.max( 1, Integer.parseInt( args[i + 1] ));
+                i += 2;
+            } else if ( "-repeat".equals( args[i] ) && i + 1 < args.length ) {
+                batch.repeat = Math.max( 1, Integer.parseInt( args[i + 1] ));
+                i += 2;
+            } else if ( "-normalization".equals( args[i] ) && i + 1 < args.length ) {
+                batch.normalizationType = NormalizationType.valueOf( args[i + 1].toUpperCase().replace( '-', '_' ));
+                i += 2;
+            } else {
+                engineArgs.add( args[i++] );
+            }
+        }
+        if ( queryFile == null ) {
+            System.err.println( "Usage: java ir.BatchSearch [engine options] -queries <file> [-querythreads n] [-repeat n] [-normalization type]" );
+            return;
+        }
+
+        batch.readQueries( queryFile );
+        if ( batch.queries.isEmpty() ) {
+            System.err.println( "No queries in " + queryFile );
+            return;
+        }
+        batch.engine = new Engine( engineArgs.toArray( new String[0] ), false );
+        batch.run();
+    }
+}
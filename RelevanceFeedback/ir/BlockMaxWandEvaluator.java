@@ -0,0 +1,140 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.util.ArrayList;
+
+
+/**
+ *   Finds the k best documents of a tf-idf query with block-max WAND.
+ *
+ *   The terms are kept ordered by the docID under their cursor. Adding up
+ *   the bounds of the terms in that order, the pivot is the first docID
+ *   where the sum exceeds the score of the k-th document: no document
+ *   before it can enter the top k. The bounds of the blocks that hold the
+ *   pivot in each list then give a tighter bound. If it is still high
+ *   enough the pivot is scored, otherwise every document up to the end of
+ *   the first of those blocks is skipped, without decoding the blocks.
+ *
+ *   As with MaxScore, scores are summed in query order and ties are broken
+ *   by docID, so the results are those of the term-at-a-time evaluation.
+ */
+public class BlockMaxWandEvaluator extends MaxScoreEvaluator {
+
+    /** Indices of the terms, by the docID under their cursor. */
+    int[] byDocID;
+
+
+    public BlockMaxWandEvaluator( Index index, NormalizationType normalizationType, int k ) {
+        super( index, normalizationType, k );
+    }
+
+
+    /**
+     *  Returns the k best documents with their scores, best first.
+     *  weights[i] is the weight of the term of postingsLists.get(i).
+     */
+    public PostingsList search( ArrayList<Postings> postingsLists, double[] weights ) {
+        int n = prepare( postingsLists, weights );
+        byDocID = new int[n];
+        for ( int t=0; t<n; t++ ) {
+            byDocID[t] = t;
+        }
+
+        while ( true ) {
+            sortByDocID();
+            double threshold = heapSize < k ? Double.NEGATIVE_INFINITY : heapScores[0];
+
+            // The pivot, and all the terms on the same docID
+            int pivot = -1;
+            double sum = 0;
+            for ( int i=0; i<n && docs[byDocID[i]] != Integer.MAX_VALUE; i++ ) {
+                sum += bounds[byDocID[i]];
+                if ( sum > threshold ) {
+                    pivot = i;
+                    break;
+                }
+            }
+            if ( pivot < 0 ) {
+                break;
+            }
+            int docID = docs[byDocID[pivot]];
+            while ( pivot + 1 < n && docs[byDocID[pivot + 1]] == docID ) {
+                pivot++;
+            }
+
+            // The bound of the blocks holding docID, and where the first of them ends
+            double blockBound = 0;
+            int skipTo = pivot + 1 < n ? docs[byDocID[pivot + 1]] : Integer.MAX_VALUE;
+            for ( int i=0; i<=pivot; i++ ) {
+                int t = byDocID[i];
+                int block = blockOf( t, docID );
+                if ( block < lists[t].blockCount() ) {
+                    blockBound += bound( t, lists[t].blockMaxNormalizedTf( block, normalizationType, index ));
+                    skipTo = Math.min( skipTo, lists[t].blockLastDocID( block ) + 1 );
+                }
+            }
+
+            if ( blockBound > threshold ) {
+                if ( docs[byDocID[0]] == docID ) {
+                    double length = documents.length( docID, normalizationType );
+                    double score = 0;
+                    for ( int t=0; t<n; t++ ) {
+                        score += termScore( t, docID, length );
+                    }
+                    scored++;
+                    keep( docID, score );
+                    for ( int i=0; i<=pivot; i++ ) {
+                        moveTo( byDocID[i], cursors[byDocID[i]] + 1 );
+                    }
+                } else {
+                    for ( int i=0; i<pivot && docs[byDocID[i]] < docID; i++ ) {
+                        int t = byDocID[i];
+                        moveTo( t, lists[t].advance( cursors[t], docID ));
+                    }
+                }
+            } else {
+                for ( int i=0; i<=pivot; i++ ) {
+                    int t = byDocID[i];
+                    if ( docs[t] < skipTo ) {
+                        moveTo( t, skipTo == Integer.MAX_VALUE ? lists[t].size() : lists[t].advance( cursors[t], skipTo ));
+                    }
+                }
+            }
+        }
+
+        return topDocuments();
+    }
+
+
+    /**
+     *  The block of term t holding the first posting at or after docID,
+     *  found from the block table only, or blockCount() if there is none.
+     */
+    int blockOf( int t, int docID ) {
+        int block = cursors[t] / Postings.BLOCK_SIZE;
+        while ( block < lists[t].blockCount() && lists[t].blockLastDocID( block ) < docID ) {
+            block++;
+        }
+        return block;
+    }
+
+
+    /** Insertion sort, the order changes little from one step to the next. */
+    void sortByDocID() {
+        for ( int i=1; i<byDocID.length; i++ ) {
+            int t = byDocID[i];
+            int j = i - 1;
+            while ( j >= 0 && docs[byDocID[j]] > docs[t] ) {
+                byDocID[j + 1] = byDocID[j];
+                j--;
+            }
+            byDocID[j + 1] = t;
+        }
+    }
+}
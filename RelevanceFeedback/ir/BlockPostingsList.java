@@ -0,0 +1,137 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ *   A postings list read from the data file, decoded one block at a time.
+ *
+ *   Only the block table of the record is read up front: the last docID,
+ *   position and score bounds of every block of Postings.BLOCK_SIZE
+ *   postings. A block is decoded the first time one of its postings is
+ *   asked for, so advance() can jump over blocks, and the pruning
+ *   evaluators can bound their scores, without decoding them.
+ *
+ *   The list is read only. A decoded block is published through an
+ *   AtomicReferenceArray, so threads that search the same list see either
+ *   no block or a fully decoded one; two threads may both decode a block,
+ *   and the first one to publish it wins.
+ */
+public class BlockPostingsList implements Postings {
+
+    /** The block data of the record, block b in [blockStarts[b], blockStarts[b+1]). */
+    private final ByteBuffer data;
+    private final int[] blockStarts;
+
+    private final int size;
+    private final int[] blockLastDocIDs;
+
+    /** storedBounds[n][b] is the bound of block b for the normalization with ordinal n. */
+    private final float[][] storedBounds;
+
+    /** The decoded postings of every block, null for blocks not decoded yet. */
+    private final AtomicReferenceArray<PostingsEntry[]> blocks;
+
+
+    BlockPostingsList( ByteBuffer data, int size, int[] blockStarts, int[] blockLastDocIDs, float[][] storedBounds ) {
+        this.data = data;
+        this.size = size;
+        this.blockStarts = blockStarts;
+        this.blockLastDocIDs = blockLastDocIDs;
+        this.storedBounds = storedBounds;
+        this.blocks = new AtomicReferenceArray<PostingsEntry[]>( blockLastDocIDs.length );
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+
+    public PostingsEntry get( int i ) {
+        PostingsEntry[] block = blocks.get( i / BLOCK_SIZE );
+        if ( block == null ) {
+            block = decodeBlock( i / BLOCK_SIZE );
+        }
+        return block[i % BLOCK_SIZE];
+    }
+
+
+    /**
+     *  Finds the block of docID in the block table, and only decodes that block.
+     */
+    public int advance( int from, int docID ) {
+        if ( from >= size ) {
+            return from;
+        }
+        int block = from / BLOCK_SIZE;
+        if ( blockLastDocIDs[block] < docID ) {
+            int low = block + 1;
+            int high = blockLastDocIDs.length;
+            while ( low < high ) {
+                int mid = ( low + high ) >>> 1;
+                if ( blockLastDocIDs[mid] < docID ) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if ( low == blockLastDocIDs.length ) {
+                return size;
+            }
+            block = low;
+            from = block * BLOCK_SIZE;
+        }
+        int high = Math.min( size, ( block + 1 ) * BLOCK_SIZE );
+        while ( from < high ) {
+            int mid = ( from + high ) >>> 1;
+            if ( get( mid ).docID < docID ) {
+                from = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return from;
+    }
+
+
+    /** The size of the block data of the record in bytes. */
+    int encodedBytes() {
+        return data.limit();
+    }
+
+
+    public int blockLastDocID( int block ) {
+        return blockLastDocIDs[block];
+    }
+
+
+    public double blockMaxNormalizedTf( int block, NormalizationType normalizationType, Index index ) {
+        return storedBounds[normalizationType.ordinal()][block];
+    }
+
+
+    private PostingsEntry[] decodeBlock( int block ) {
+        int from = block * BLOCK_SIZE;
+        PostingsEntry[] entries = new PostingsEntry[Math.min( size, from + BLOCK_SIZE ) - from];
+        ByteBuffer buffer = data.duplicate();
+        buffer.position( blockStarts[block] );
+        QueryTrace.enter( QueryTrace.Stage.DECODE );
+        try {
+            PostingsCodec.decodeBlock( buffer, block == 0 ? 0 : blockLastDocIDs[block - 1], entries, 0, entries.length );
+        } finally {
+            QueryTrace.exit( QueryTrace.Stage.DECODE );
+        }
+        QueryTrace.count( QueryTrace.Counter.ENTRIES_DECODED, entries.length );
+        blocks.compareAndSet( block, null, entries );
+        return blocks.get( block );
+    }
+}
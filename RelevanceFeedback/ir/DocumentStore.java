@@ -0,0 +1,283 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *   The per-document statistics of an index, in columns indexed by docID.
+ *
+ *   The lengths and PageRank of the documents are kept in primitive arrays,
+ *   so scoring a posting costs an array load. The paths are kept as UTF-8
+ *   bytes in one path table, with the start and length of every path, and
+ *   are only turned into Strings when a result is shown. A docID without a
+ *   document has length 0, PageRank 0 and a null name.
+ *
+ *   The store is written to a binary file:
+ *
+ *     magic (4 bytes), version (4 bytes), number of documents (4 bytes),
+ *     docID limit (4 bytes), size of the path table (4 bytes),
+ *     the lengths (limit ints), the Euclidean lengths (limit doubles),
+ *     the path starts (limit ints), the path lengths (limit ints),
+ *     the path table.
+ *
+ *   A store read with map() keeps the path table in the mapped file and
+ *   copies only the numeric columns into memory. The PageRank is not
+ *   stored, it is loaded from the pagerank files every time.
+ *
+ *   Every change to the store gives it a new generation, taken from a
+ *   counter shared by all stores, so results computed at one generation
+ *   can be recognized as stale later, see QueryCache. Documents are added
+ *   together with their tokens, so the generation also changes when the
+ *   postings of the index do.
+ */
+public class DocumentStore {
+
+    /** "IRDS" */
+    public static final int MAGIC = 0x49524453;
+
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 20;
+
+    /** The last generation given to a store. */
+    private static final AtomicLong GENERATIONS = new AtomicLong();
+
+    private volatile long generation = GENERATIONS.incrementAndGet();
+
+    /** The number of documents, and one more than the highest docID. */
+    private int size = 0;
+    private int limit = 0;
+
+    private int[] lengths = new int[0];
+    private double[] euclideanLengths = new double[0];
+    private double[] pageRanks = new double[0];
+
+    /** The path of docID is at pathStarts[docID] in the path table, pathLengths[docID] is -1 if there is no document. */
+    private int[] pathStarts = new int[0];
+    private int[] pathLengths = new int[0];
+
+    /** The path table, in memory or in a mapped file from position mappedPathsStart. */
+    private byte[] paths = new byte[0];
+    private int pathsSize = 0;
+    private MappedFile mappedPaths;
+    private long mappedPathsStart;
+
+
+    /** The number of documents. */
+    public int size() {
+        return size;
+    }
+
+
+    /** One more than the highest docID. */
+    public int limit() {
+        return limit;
+    }
+
+
+    /**
+     *  Adds a document with its path and its length in tokens.
+     */
+    public void addDocument( int docID, String path, int length ) {
+        if ( mappedPaths != null ) {
+            throw new UnsupportedOperationException( "A mapped document store cannot be changed" );
+        }
+        ensureLimit( docID + 1 );
+        if ( pathLengths[docID] < 0 ) {
+            size++;
+        }
+        byte[] bytes = path.getBytes( StandardCharsets.UTF_8 );
+        if ( pathsSize + bytes.length > paths.length ) {
+            paths = Arrays.copyOf( paths, Math.max( pathsSize + bytes.length, 2 * paths.length ));
+        }
+        System.arraycopy( bytes, 0, paths, pathsSize, bytes.length );
+        pathStarts[docID] = pathsSize;
+        pathLengths[docID] = bytes.length;
+        pathsSize += bytes.length;
+        lengths[docID] = length;
+        generation = GENERATIONS.incrementAndGet();
+    }
+
+
+    public void setEuclideanLength( int docID, double length ) {
+        ensureLimit( docID + 1 );
+        euclideanLengths[docID] = length;
+        generation = GENERATIONS.incrementAndGet();
+    }
+
+
+    public void setPageRank( int docID, double pageRank ) {
+        ensureLimit( docID + 1 );
+        pageRanks[docID] = pageRank;
+        generation = GENERATIONS.incrementAndGet();
+    }
+
+
+    /** A number that changes every time the store does. */
+    public long getGeneration() {
+        return generation;
+    }
+
+
+    /** The path of a document, or null if there is no such document. */
+    public String name( int docID ) {
+        if ( docID >= limit || pathLengths[docID] < 0 ) {
+            return null;
+        }
+        if ( mappedPaths != null ) {
+            return StandardCharsets.UTF_8.decode( mappedPaths.slice( mappedPathsStart + pathStarts[docID], pathLengths[docID] )).toString();
+        }
+        return new String( paths, pathStarts[docID], pathLengths[docID], StandardCharsets.UTF_8 );
+    }
+
+
+    /** The length of a document in tokens. */
+    public int length( int docID ) {
+        return docID < limit ? lengths[docID] : 0;
+    }
+
+
+    public double euclideanLength( int docID ) {
+        return docID < limit ? euclideanLengths[docID] : 0;
+    }
+
+
+    /** The length of a document for the given normalization. */
+    public double length( int docID, NormalizationType normalizationType ) {
+        if ( docID >= limit ) {
+            return 0;
+        }
+        return normalizationType == NormalizationType.EUCLIDEAN ? euclideanLengths[docID] : lengths[docID];
+    }
+
+
+    public double pageRank( int docID ) {
+        return docID < limit ? pageRanks[docID] : 0;
+    }
+
+
+    private void ensureLimit( int newLimit ) {
+        if ( newLimit <= limit ) {
+            return;
+        }
+        if ( newLimit > lengths.length ) {
+            int capacity = Math.max( newLimit, 2 * lengths.length );
+            lengths = Arrays.copyOf( lengths, capacity );
+            euclideanLengths = Arrays.copyOf( euclideanLengths, capacity );
+            pageRanks = Arrays.copyOf( pageRanks, capacity );
+            pathStarts = Arrays.copyOf( pathStarts, capacity );
+            pathLengths = Arrays.copyOf( pathLengths, capacity );
+        }
+        Arrays.fill( pathLengths, limit, newLimit, -1 );
+        limit = newLimit;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Writes the store to a file.
+     */
+    public void write( File file ) throws IOException {
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file )))) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( size );
+            out.writeInt( limit );
+            out.writeInt( pathsSize );
+            for ( int docID=0; docID<limit; docID++ ) {
+                out.writeInt( lengths[docID] );
+            }
+            for ( int docID=0; docID<limit; docID++ ) {
+                out.writeDouble( euclideanLengths[docID] );
+            }
+            for ( int docID=0; docID<limit; docID++ ) {
+                out.writeInt( pathStarts[docID] );
+            }
+            for ( int docID=0; docID<limit; docID++ ) {
+                out.writeInt( pathLengths[docID] );
+            }
+            if ( mappedPaths != null ) {
+                ByteBuffer mapped = mappedPaths.slice( mappedPathsStart, pathsSize );
+                byte[] bytes = new byte[pathsSize];
+                mapped.get( bytes );
+                out.write( bytes );
+            } else {
+                out.write( paths, 0, pathsSize );
+            }
+        }
+    }
+
+
+    /**
+     *  Reads a whole store from a file.
+     */
+    public static DocumentStore read( File file ) throws IOException {
+        DocumentStore store = new DocumentStore();
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file )))) {
+            store.readHeader( in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), file );
+            for ( int docID=0; docID<store.limit; docID++ ) {
+                store.lengths[docID] = in.readInt();
+            }
+            for ( int docID=0; docID<store.limit; docID++ ) {
+                store.euclideanLengths[docID] = in.readDouble();
+            }
+            for ( int docID=0; docID<store.limit; docID++ ) {
+                store.pathStarts[docID] = in.readInt();
+            }
+            for ( int docID=0; docID<store.limit; docID++ ) {
+                store.pathLengths[docID] = in.readInt();
+            }
+            store.paths = new byte[store.pathsSize];
+            in.readFully( store.paths );
+        }
+        return store;
+    }
+
+
+    /**
+     *  Reads the numeric columns of a store from a file, and maps its path
+     *  table. The store cannot be given new documents.
+     */
+    public static DocumentStore map( File file ) throws IOException {
+        MappedFile mapped = new MappedFile( file );
+        DocumentStore store = new DocumentStore();
+        store.readHeader( mapped.getInt( 0 ), mapped.getInt( 4 ), mapped.getInt( 8 ), mapped.getInt( 12 ), mapped.getInt( 16 ), file );
+        int limit = store.limit;
+        long pos = HEADER_SIZE;
+        mapped.slice( pos, 4 * limit ).asIntBuffer().get( store.lengths, 0, limit );
+        pos += 4L * limit;
+        mapped.slice( pos, 8 * limit ).asDoubleBuffer().get( store.euclideanLengths, 0, limit );
+        pos += 8L * limit;
+        mapped.slice( pos, 4 * limit ).asIntBuffer().get( store.pathStarts, 0, limit );
+        pos += 4L * limit;
+        mapped.slice( pos, 4 * limit ).asIntBuffer().get( store.pathLengths, 0, limit );
+        pos += 4L * limit;
+        store.paths = null;
+        store.mappedPaths = mapped;
+        store.mappedPathsStart = pos;
+        return store;
+    }
+
+
+    private void readHeader( int magic, int version, int size, int limit, int pathsSize, File file ) throws IOException {
+        if ( magic != MAGIC || version != VERSION ) {
+            throw new IOException( file + " is not a document store of version " + VERSION );
+        }
+        ensureLimit( limit );
+        this.size = size;
+        this.pathsSize = pathsSize;
+    }
+}
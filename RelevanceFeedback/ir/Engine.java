@@ -10,6 +10,7 @@
 package ir;
 
 import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.File;
 
 /**
@@ -40,8 +41,12 @@ public class Engine {
     /** Directories that should be indexed. */
     ArrayList<String> dirNames = new ArrayList<String>();
 
-    /** Lock to prevent simultaneous access to the index. */
-    Object indexLock = new Object();
+    /**
+     *  Lock to prevent searching the index while it is changed. Searches
+     *  only read the index and share the read lock, indexing and loading
+     *  the PageRank take the write lock.
+     */
+    ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file = null;
@@ -55,6 +60,33 @@ public class Engine {
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** Number of threads tokenizing documents during indexing. */
+    int indexing_threads = 1;
+
+    /** Memory budget of the in-memory buffer of a scalable index, in bytes (0 for the default). */
+    long index_buffer = 0;
+
+    /** Memory budget of the postings cache of a persistent index, in bytes (0 for no cache). */
+    long postings_cache = 0;
+
+    /** Memory budget of the query result cache, in bytes (0 for no cache). */
+    long query_cache = 0;
+
+    /** How tf-idf ranked queries are evaluated. */
+    EvaluationType evaluation_type = EvaluationType.TERM_AT_A_TIME;
+
+    /**
+     *  Number of results kept when ranked queries are pruned. A pruned
+     *  result only tells a lower bound of the number of matching documents.
+     */
+    int top_k = 100;
+
+    /** Time between two progress lines while indexing, in milliseconds (0 for none). */
+    long progress_interval = IndexingMetrics.DEFAULT_LOG_INTERVAL_MILLIS;
+
+    /** Whether the stages of every query are timed, see QueryTrace. */
+    boolean trace_queries = false;
+
 
     /* ----------------------------------------------- */
 
@@ -64,23 +96,70 @@ public class Engine {
      *   Indexes all chosen directories and files
      */
     public Engine( String[] args ) {
+        this( args, true );
+    }
+
+
+    /**
+     *   Same as above, but the GUI is only shown if withGui is true.
+     *   Without it, the progress is printed on stderr.
+     */
+    Engine( String[] args, boolean withGui ) {
         decodeArgs( args );
+        if ( !is_indexing && index instanceof PersistentHashedIndex ) {
+            ((PersistentHashedIndex) index).mapIndexFiles();
+        }
+        if ( index_buffer > 0 ) {
+            if ( index instanceof ScalablePersistentHashedIndex ) {
+                ((ScalablePersistentHashedIndex) index).setBufferBudget( index_buffer );
+            } else {
+                System.err.println( "-indexbuffer only applies to a ScalablePersistentHashedIndex" );
+            }
+        }
+        if ( postings_cache > 0 ) {
+            if ( index instanceof PersistentHashedIndex ) {
+                PersistentHashedIndex persistentIndex = (PersistentHashedIndex) index;
+                persistentIndex.setPostingsCache( postings_cache );
+                Runtime.getRuntime().addShutdownHook( new Thread( () -> System.err.println( persistentIndex.postingsCache )));
+            } else {
+                System.err.println( "-postingscache only applies to a PersistentHashedIndex" );
+            }
+        }
         
         HITSRanker hitsRanker = new HITSRanker("pagerank/linksDavis.txt", "pagerank/davisTitles.txt", index);
         
         indexer = new Indexer( index, kgIndex, patterns_file );
+        indexer.threads = indexing_threads;
+        indexer.metrics.logIntervalMillis = progress_interval;
+        if ( index instanceof ScalablePersistentHashedIndex ) {
+            ((ScalablePersistentHashedIndex) index).setMetrics( indexer.metrics );
+        }
         searcher = new Searcher( index, kgIndex, hitsRanker );
-        gui = new SearchGUI( this );
-        gui.init();
+        searcher.evaluationType = evaluation_type;
+        searcher.topK = top_k;
+        if ( query_cache > 0 ) {
+            QueryCache queryCache = new QueryCache( query_cache );
+            searcher.queryCache = queryCache;
+            Runtime.getRuntime().addShutdownHook( new Thread( () -> System.err.println( queryCache )));
+        }
+        if ( trace_queries ) {
+            QueryTrace.enabled = true;
+            Runtime.getRuntime().addShutdownHook( new Thread( () -> System.err.print( QueryTrace.report() )));
+        }
+        if ( withGui ) {
+            gui = new SearchGUI( this );
+            gui.init();
+        }
         /* 
          *   Calls the indexer to index the chosen directory structure.
-         *   Access to the index is synchronized since we don't want to 
-         *   search at the same time we're indexing new files (this might 
+         *   Indexing holds the write lock of the index since we don't want
+         *   to search at the same time we're indexing new files (this might 
          *   corrupt the index).
          */
         if (is_indexing) {
-            synchronized ( indexLock ) {
-                gui.displayInfoText( "Indexing, please wait..." );
+            indexLock.writeLock().lock();
+            try {
+                displayInfoText( "Indexing, please wait..." );
                 long startTime = System.currentTimeMillis();
                 for ( int i=0; i<dirNames.size(); i++ ) {
                     File dokDir = new File( dirNames.get( i ));
@@ -89,15 +168,35 @@ public class Engine {
                     
                 }
                 long elapsedTime = System.currentTimeMillis() - startTime;
-                gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
+                displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
                 
                 indexer.calculateEuclidean();
                 index.cleanup();
+                System.err.print( indexer.metrics.report() );
+            } finally {
+                indexLock.writeLock().unlock();
             }
         } else {
-            gui.displayInfoText( "Index is loaded from disk" );
+            displayInfoText( "Index is loaded from disk" );
+        }
+        indexLock.writeLock().lock();
+        try {
+            index.loadPageRank();
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     *   Shows a message in the GUI, or on stderr if there is none.
+     */
+    private void displayInfoText( String info ) {
+        if ( gui != null ) {
+            gui.displayInfoText( info );
+        } else {
+            System.err.println( info );
         }
-        index.loadPageRank();
     }
 
 
@@ -132,6 +231,44 @@ public class Engine {
             } else if ( "-ni".equals( args[i] )) {
                 i++;
                 is_indexing = false;
+            } else if ( "-threads".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    indexing_threads = Integer.parseInt( args[i++] );
+                }
+            } else if ( "-evaluation".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    evaluation_type = EvaluationType.valueOf( args[i++].toUpperCase().replace( '-', '_' ));
+                }
+            } else if ( "-topk".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    top_k = Math.max( 1, Integer.parseInt( args[i++] ));
+                }
+            } else if ( "-indexbuffer".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    index_buffer = parseSize( args[i++] );
+                }
+            } else if ( "-postingscache".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    postings_cache = parseSize( args[i++] );
+                }
+            } else if ( "-querycache".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    query_cache = parseSize( args[i++] );
+                }
+            } else if ( "-progress".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    progress_interval = Math.max( 0, (long)( Double.parseDouble( args[i++] ) * 1000 ));
+                }
+            } else if ( "-trace".equals( args[i] )) {
+                i++;
+                trace_queries = true;
             } else {
                 System.err.println( "Unknown option: " + args[i] );
                 break;
@@ -140,6 +277,26 @@ public class Engine {
     }
 
 
+    /**
+     *   Parses a size in bytes with an optional k, m or g suffix, e.g. 512m.
+     */
+    static long parseSize( String size ) {
+        String s = size.trim().toLowerCase();
+        long unit = 1;
+        if ( s.endsWith( "k" )) {
+            unit = 1L << 10;
+        } else if ( s.endsWith( "m" )) {
+            unit = 1L << 20;
+        } else if ( s.endsWith( "g" )) {
+            unit = 1L << 30;
+        }
+        if ( unit > 1 ) {
+            s = s.substring( 0, s.length() - 1 );
+        }
+        return Long.parseLong( s ) * unit;
+    }
+
+
     /* ----------------------------------------------- */
 
 
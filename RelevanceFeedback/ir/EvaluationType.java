@@ -0,0 +1,18 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+/**
+ *  The ways of evaluating a tf-idf ranked query. TERM_AT_A_TIME scores
+ *  every posting of every term. MAX_SCORE goes document by document and
+ *  skips the documents that cannot enter the top results. BLOCK_MAX_WAND
+ *  also skips whole blocks of postings using their score bounds.
+ */
+public enum EvaluationType {
+    TERM_AT_A_TIME, MAX_SCORE, BLOCK_MAX_WAND
+}
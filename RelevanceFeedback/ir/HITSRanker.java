@@ -246,25 +246,26 @@ public class HITSRanker {
 
     /**
      * Rank the documents in the subgraph induced by the documents present
-     * in the postings list `post`.
+     * in the postings list `post`. The hub and authority scores are kept
+     * in the ranker, so only one query is ranked at a time.
      *
      * @param      post  The list of postings fulfilling a certain information need
      *
      * @return     A list of postings ranked according to the hub and authority scores.
      */
-    PostingsList rank(PostingsList postingsList) {
+    synchronized PostingsList rank(PostingsList postingsList) {
     	
     	ArrayList<String> docIDs = new ArrayList<String>();
     	
     	for(int i=0; i<postingsList.size(); i++) {
-    		String[] split = index.docNames.get(postingsList.get(i).docID).split("/");
+    		String[] split = index.getDocuments().name(postingsList.get(i).docID).split("/");
 			docIDs.add(split[split.length-1]);
 		}
     	
     	iterate(docIDs.toArray(new String[0]));
     	
     	for(int i=0; i<postingsList.size(); i++) {
-    		String[] split = index.docNames.get(postingsList.get(i).docID).split("/");
+    		String[] split = index.getDocuments().name(postingsList.get(i).docID).split("/");
     		if(split[split.length-1].equals("Z-World.html") || split[split.length-1].equals("Z-World.txt")) {
     			postingsList.get(i).setScore(0);
     		} else {
@@ -21,12 +21,19 @@ public class HashedIndex implements Index {
     /** The index as a hashtable. */
     private HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
 
+    /** The names, lengths and PageRank of the documents. */
+    private DocumentStore documents = new DocumentStore();
+
+    /** The terms in sorted order, or null until asked for after an insert. */
+    private TermDictionary terms;
+
 
     /**
      *  Inserts this token in the hashtable.
      */
     public void insert( String token, int docID, int offset ) {
     	
+    	terms = null;
     	PostingsList list = index.get(token);
     	if(list == null) {
     		list = new PostingsList();
@@ -40,13 +47,33 @@ public class HashedIndex implements Index {
      *  Returns the postings for a specific term, or null
      *  if the term is not in the index.
      */
-    public PostingsList getPostings( String token ) {
-        return index.get(token);
+    public Postings getPostings( String token ) {
+        QueryTrace.enter(QueryTrace.Stage.DICTIONARY);
+        try {
+            return index.get(token);
+        } finally {
+            QueryTrace.exit(QueryTrace.Stage.DICTIONARY);
+        }
     }
     
     public PostingsList getPostingsOnTheFly( String token ) {
         return index.get(token);
     }
+
+    public DocumentStore getDocuments() {
+        return documents;
+    }
+
+    /**
+     *  Returns the terms in sorted order. They are sorted the first time
+     *  they are asked for after a token was inserted.
+     */
+    public synchronized TermDictionary getTerms() {
+        if (terms == null) {
+            terms = new TermDictionary(index.keySet());
+        }
+        return terms;
+    }
     
     
     public void loadPageRank() {
@@ -60,7 +87,7 @@ public class HashedIndex implements Index {
     		String line;
     		while ((line = br.readLine()) != null) {
     			String[] entry = line.split(":");
-    			docPageRank.put(Integer.parseInt(entry[0]), Double.parseDouble(entry[1]));
+    			documents.setPageRank(Integer.parseInt(entry[0]), Double.parseDouble(entry[1]));
     		}
     		freader.close();
     	} catch (Exception e) {
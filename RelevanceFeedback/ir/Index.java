@@ -7,7 +7,6 @@
 
 package ir;
 
-import java.util.HashMap;
 import java.util.Iterator;
 
 /**
@@ -16,24 +15,20 @@ import java.util.Iterator;
  */
 public interface Index {
 
-    /** Mapping from document identifiers to document names. */
-    public HashMap<Integer,String> docNames = new HashMap<Integer,String>();
-    
-    /** Mapping from document identifier to document length. */
-    public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
-    
-    public HashMap<Integer,Double> docLengthsEuclidean = new HashMap<Integer,Double>();
-    
-    public HashMap<Integer, Double> docPageRank = new HashMap<Integer, Double>();
+    /** The names, lengths and PageRank of the documents in this index. */
+    public DocumentStore getDocuments();
 
     /** Inserts a token into the index. */
     public void insert( String token, int docID, int offset );
 
     /** Returns the postings for a given term. */
-    public PostingsList getPostings( String token );
+    public Postings getPostings( String token );
     
     public PostingsList getPostingsOnTheFly( String token );
 
+    /** The terms of the index in sorted order, or null if they are not known. */
+    public TermDictionary getTerms();
+
     /** This method is called on exit. */
     public void cleanup();
     
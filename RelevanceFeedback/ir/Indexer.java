@@ -9,6 +9,8 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.nio.charset.*;
 
 
@@ -31,6 +33,35 @@ public class Indexer {
     
     HashMap<Integer, HashMap<String, Integer>> docTokenLengths = new HashMap<Integer, HashMap<String, Integer>>();
 
+    /**
+     *  Number of threads tokenizing documents. With more than one, the files
+     *  are tokenized in parallel but still inserted in docID order, so the
+     *  index is the same as the one built by a single thread.
+     */
+    int threads = 1;
+
+    /** Throughput and timings of the indexing, printed as it goes. */
+    IndexingMetrics metrics = new IndexingMetrics();
+
+    /** Tokenized documents waiting to be inserted, per tokenizer thread. */
+    private static final int QUEUED_DOCS_PER_THREAD = 8;
+
+
+    /**
+     *  The tokens of one document, produced by a tokenizer thread and
+     *  inserted into the index by the indexing thread.
+     */
+    private static class TokenizedDocument {
+        int docID;
+        String path;
+        ArrayList<String> tokens = new ArrayList<String>();
+        HashMap<String, Integer> tokenLength = new HashMap<String, Integer>();
+        boolean failed = false;
+    }
+
+    /** Marks the end of the tokenized documents in the queue. */
+    private static final Future<TokenizedDocument> END_OF_DOCUMENTS = CompletableFuture.completedFuture( null );
+
 
     /* ----------------------------------------------- */
 
@@ -54,43 +85,147 @@ public class Indexer {
      *  all its files and subdirectories are recursively processed.
      */
     public void processFiles( File f, boolean is_indexing ) {
-        // do not try to index fs that cannot be read
         if (is_indexing) {
-            if ( f.canRead() ) {
-                if ( f.isDirectory() ) {
-                    String[] fs = f.list();
-                    // an IO error could occur
-                    if ( fs != null ) {
-                        for ( int i=0; i<fs.length; i++ ) {
-                            processFiles( new File( f, fs[i] ), is_indexing );
-                        }
+            metrics.start();
+            if ( threads > 1 ) {
+                processFilesParallel( f );
+            } else {
+                processFilesSerial( f );
+            }
+        }
+    }
+
+
+    private void processFilesSerial( File f ) {
+        // do not try to index fs that cannot be read
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                // an IO error could occur
+                if ( fs != null ) {
+                    for ( int i=0; i<fs.length; i++ ) {
+                        processFilesSerial( new File( f, fs[i] ));
                     }
-                } else {
-                    // First register the document and get a docID
-                    int docID = generateDocID();
-                    if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
-                    try {
-                        Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                        Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-                        int offset = 0;
-                        HashMap<String, Integer> tokenLength = new HashMap<String, Integer>();
-                        while ( tok.hasMoreTokens() ) {
-                            String token = tok.nextToken();
-                            insertIntoIndex( docID, token, offset++ );
-                            tokenLength.merge(token, 1, (x,y) -> x+y);
-                            kgIndex.insert(token);
-                        }
-                        docTokenLengths.put(docID, tokenLength );
-                        index.docNames.put( docID, f.getPath() );
-                        index.docLengths.put( docID, offset );
-                        
-                        reader.close();
-                    } catch ( IOException e ) {
-                        System.err.println( "Warning: IOException during indexing." );
+                }
+            } else {
+                // First register the document and get a docID
+                int docID = generateDocID();
+                addDocument( tokenize( f, docID ));
+            }
+        }
+    }
+
+
+    /**
+     *  Walks the directory structure on a separate thread, in the same order as
+     *  processFilesSerial, handing out docIDs and submitting the files to a pool
+     *  of tokenizer threads. The calling thread inserts the tokenized documents
+     *  in docID order. The queue between them is bounded, so the walker waits
+     *  when the tokenizers or the insertion fall behind.
+     *
+     *  If the insertion stops early, because a tokenizer failed or the thread
+     *  was interrupted, it sets the stopped flag, shuts the pool down and
+     *  interrupts the walker, which then stops without reporting anything:
+     *  the failure is only reported once, here.
+     */
+    private void processFilesParallel( File root ) {
+        ExecutorService tokenizers = Executors.newFixedThreadPool( threads );
+        BlockingQueue<Future<TokenizedDocument>> queue = new ArrayBlockingQueue<Future<TokenizedDocument>>( threads * QUEUED_DOCS_PER_THREAD );
+        AtomicBoolean stopped = new AtomicBoolean( false );
+
+        Thread walker = new Thread( () -> {
+            try {
+                walk( root, tokenizers, queue, stopped );
+                queue.put( END_OF_DOCUMENTS );
+            } catch ( InterruptedException | RejectedExecutionException e ) {
+                // The insertion stopped, nobody reads the queue any more
+            }
+        }, "indexer-walker" );
+        walker.start();
+
+        try {
+            Future<TokenizedDocument> next;
+            while ( (next = queue.take()) != END_OF_DOCUMENTS ) {
+                TokenizedDocument doc = next.get();
+                addDocument( doc );
+            }
+            walker.join();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        } catch ( ExecutionException e ) {
+            e.getCause().printStackTrace();
+        } finally {
+            stopped.set( true );
+            tokenizers.shutdownNow();
+            walker.interrupt();
+        }
+    }
+
+
+    private void walk( File f, ExecutorService tokenizers, BlockingQueue<Future<TokenizedDocument>> queue, AtomicBoolean stopped ) throws InterruptedException {
+        if ( stopped.get() ) {
+            return;
+        }
+        if ( f.canRead() ) {
+            if ( f.isDirectory() ) {
+                String[] fs = f.list();
+                if ( fs != null ) {
+                    for ( int i=0; i<fs.length && !stopped.get(); i++ ) {
+                        walk( new File( f, fs[i] ), tokenizers, queue, stopped );
                     }
                 }
+            } else {
+                int docID = generateDocID();
+                queue.put( tokenizers.submit( () -> tokenize( f, docID )));
+            }
+        }
+    }
+
+
+    /**
+     *  Reads and tokenizes one file. Safe to call from several threads.
+     */
+    private TokenizedDocument tokenize( File f, int docID ) {
+        TokenizedDocument doc = new TokenizedDocument();
+        doc.docID = docID;
+        doc.path = f.getPath();
+        long start = System.nanoTime();
+        try {
+            Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
+            Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
+            while ( tok.hasMoreTokens() ) {
+                String token = tok.nextToken();
+                doc.tokens.add( token );
+                doc.tokenLength.merge(token, 1, (x,y) -> x+y);
             }
+            reader.close();
+        } catch ( IOException e ) {
+            doc.failed = true;
+        }
+        metrics.recordTokenized( f.length(), System.nanoTime() - start );
+        return doc;
+    }
+
+
+    /**
+     *  Inserts a tokenized document into the index. Only ever called from one
+     *  thread, in docID order.
+     */
+    private void addDocument( TokenizedDocument doc ) {
+        if ( doc.failed ) {
+            System.err.println( "Warning: IOException during indexing." );
+            return;
+        }
+        long start = System.nanoTime();
+        long flushNanos = metrics.getFlushNanos();
+        int offset = 0;
+        for ( String token : doc.tokens ) {
+            insertIntoIndex( doc.docID, token, offset++ );
         }
+        docTokenLengths.put( doc.docID, doc.tokenLength );
+        index.getDocuments().addDocument( doc.docID, doc.path, offset );
+        // The runs the index flushed meanwhile are already counted as flushes
+        metrics.recordInserted( offset, System.nanoTime() - start - ( metrics.getFlushNanos() - flushNanos ));
     }
 
 
@@ -98,17 +233,18 @@ public class Indexer {
     
     public void calculateEuclidean() {
     	
-    	int N = index.docLengths.size();
+    	DocumentStore documents = index.getDocuments();
+    	int N = documents.size();
     	
     	for (HashMap.Entry<Integer, HashMap<String, Integer>> entry : docTokenLengths.entrySet()) {
     		double sum = 0;
     		for(HashMap.Entry<String, Integer> tokenCountsEntry : entry.getValue().entrySet()) {
     			int tf = tokenCountsEntry.getValue();
     			double docf = index.getPostingsOnTheFly(tokenCountsEntry.getKey()).size();
-    			double idf = Math.log(index.docNames.size()/docf);
+    			double idf = Math.log(N/docf);
     			sum += Math.pow(tf * idf, 2);
     		}
-    		index.docLengthsEuclidean.put(entry.getKey(), Math.sqrt(sum));
+    		documents.setEuclideanLength(entry.getKey(), Math.sqrt(sum));
     	}
     }
 
@@ -0,0 +1,222 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ *   Counts what indexing does, to size indexing jobs and find where the
+ *   time goes.
+ *
+ *   The Indexer records every document it tokenizes and inserts, and a
+ *   ScalablePersistentHashedIndex every run it flushes, every merge and
+ *   the probe statistics of the dictionary it fills.
+ *   While documents are inserted, a progress line is printed on stderr at
+ *   most every logIntervalMillis; report() gives the totals at the end.
+ *
+ *   Tokenizing may run on several threads, so the tokenizer time is the
+ *   sum of the time of all tokenizer threads and can exceed the wall time.
+ *   The runs flushed while a document is inserted count as flush time,
+ *   not as insertion time.
+ *   Rates are per second of wall time from the first document to the
+ *   last one inserted. All methods can be called from any thread.
+ */
+public class IndexingMetrics {
+
+    /** Default time between two progress lines. */
+    public static final long DEFAULT_LOG_INTERVAL_MILLIS = 5000;
+
+    /** Time between two progress lines, 0 for none. */
+    volatile long logIntervalMillis = DEFAULT_LOG_INTERVAL_MILLIS;
+
+    private volatile long startNanos = 0;
+    private volatile long lastInsertNanos = 0;
+    private volatile long lastLogNanos = 0;
+
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong tokenizeNanos = new AtomicLong();
+    private final AtomicLong insertNanos = new AtomicLong();
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private final AtomicLong flushedBytes = new AtomicLong();
+    private final AtomicLong runBytes = new AtomicLong();
+    private final AtomicLong peakBufferedBytes = new AtomicLong();
+
+    private final AtomicLong merges = new AtomicLong();
+    private final AtomicLong mergeNanos = new AtomicLong();
+    private final AtomicLong mergeBytesIn = new AtomicLong();
+    private final AtomicLong mergeBytesOut = new AtomicLong();
+    private final AtomicLong peakMergeBufferedBytes = new AtomicLong();
+
+    /** Probe statistics of the dictionary written last, or null. */
+    private volatile ProbeStats dictionaryStats;
+
+
+    /** Starts the clock, unless it is already running. */
+    public synchronized void start() {
+        if ( startNanos == 0 ) {
+            startNanos = System.nanoTime();
+            lastLogNanos = startNanos;
+        }
+    }
+
+
+    /** A file of the given size was read and tokenized. */
+    public void recordTokenized( long bytes, long nanos ) {
+        bytesRead.addAndGet( bytes );
+        tokenizeNanos.addAndGet( nanos );
+    }
+
+
+    /**
+     *  A document with the given number of tokens was inserted into the
+     *  index. Prints a progress line if one is due.
+     */
+    public void recordInserted( long documentTokens, long nanos ) {
+        documents.incrementAndGet();
+        tokens.addAndGet( documentTokens );
+        insertNanos.addAndGet( nanos );
+        long now = System.nanoTime();
+        lastInsertNanos = now;
+        long interval = logIntervalMillis * 1000000L;
+        if ( interval > 0 && now - lastLogNanos >= interval ) {
+            lastLogNanos = now;
+            System.err.println( progressLine() );
+        }
+    }
+
+
+    /**
+     *  The in-memory buffer was written to a run.
+     *
+     *  @param bufferedBytes The estimated size of the buffer.
+     *  @param bytesWritten The size of the run on disk.
+     */
+    public void recordFlush( long bufferedBytes, long bytesWritten, long nanos ) {
+        flushes.incrementAndGet();
+        flushNanos.addAndGet( nanos );
+        flushedBytes.addAndGet( bufferedBytes );
+        runBytes.addAndGet( bytesWritten );
+        peakBufferedBytes.accumulateAndGet( bufferedBytes, Math::max );
+    }
+
+
+    /**
+     *  Runs of bytesIn bytes in all were merged into bytesOut bytes.
+     *
+     *  @param bufferedBytes The estimated size of what the merge kept in
+     *                       memory, e.g. the words for the terms file.
+     */
+    public void recordMerge( long bytesIn, long bytesOut, long bufferedBytes, long nanos ) {
+        merges.incrementAndGet();
+        mergeNanos.addAndGet( nanos );
+        mergeBytesIn.addAndGet( bytesIn );
+        mergeBytesOut.addAndGet( bytesOut );
+        peakMergeBufferedBytes.accumulateAndGet( bufferedBytes, Math::max );
+    }
+
+
+    /** The dictionary was filled with the given probe statistics. */
+    public void recordDictionary( ProbeStats stats ) {
+        dictionaryStats = stats;
+    }
+
+
+    public long getDocuments() {
+        return documents.get();
+    }
+
+
+    public long getTokens() {
+        return tokens.get();
+    }
+
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+
+    /** Time spent flushing runs, in nanoseconds. */
+    public long getFlushNanos() {
+        return flushNanos.get();
+    }
+
+
+    /** Seconds from the start to the last document inserted. */
+    public double getSeconds() {
+        long start = startNanos;
+        long end = lastInsertNanos;
+        return start == 0 || end <= start ? 0.0 : ( end - start ) / 1e9;
+    }
+
+
+    private static double perSecond( long count, double seconds ) {
+        return seconds > 0 ? count / seconds : 0.0;
+    }
+
+
+    private static double megabytes( long bytes ) {
+        return bytes / (double)( 1 << 20 );
+    }
+
+
+    /** The peak heap use of the JVM so far, summed over the heap pools. */
+    static long peakHeapBytes() {
+        long peak = 0;
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            if ( pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null ) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+
+    /** One line with the rates and counts so far. */
+    public String progressLine() {
+        double seconds = getSeconds();
+        return String.format( "Indexed %d files in %.1f s: %.0f docs/s, %.0f tokens/s, %.2f MB/s read, tokenize %.1f s, insert %.1f s, %d flushes in %.1f s, peak buffer %.1f MB",
+                              documents.get(), seconds, perSecond( documents.get(), seconds ), perSecond( tokens.get(), seconds ),
+                              perSecond( bytesRead.get(), seconds ) / ( 1 << 20 ), tokenizeNanos.get() / 1e9, insertNanos.get() / 1e9,
+                              flushes.get(), flushNanos.get() / 1e9, megabytes( peakBufferedBytes.get() ));
+    }
+
+
+    /** The totals, one line per kind of work. */
+    public String report() {
+        double seconds = getSeconds();
+        StringBuilder report = new StringBuilder( "Indexing metrics:\n" );
+        report.append( String.format( "  documents   %d in %.1f s (%.0f docs/s)%n", documents.get(), seconds, perSecond( documents.get(), seconds )));
+        report.append( String.format( "  tokens      %d (%.0f tokens/s)%n", tokens.get(), perSecond( tokens.get(), seconds )));
+        report.append( String.format( "  read        %.1f MB (%.2f MB/s)%n", megabytes( bytesRead.get() ), perSecond( bytesRead.get(), seconds ) / ( 1 << 20 )));
+        report.append( String.format( "  tokenize    %.1f s (all threads), insert %.1f s (flushes left out)%n", tokenizeNanos.get() / 1e9, insertNanos.get() / 1e9 ));
+        report.append( String.format( "  flushes     %d in %.1f s, %.1f MB buffered, %.1f MB written, peak buffer %.1f MB%n", flushes.get(), flushNanos.get() / 1e9,
+                                      megabytes( flushedBytes.get() ), megabytes( runBytes.get() ), megabytes( peakBufferedBytes.get() )));
+        report.append( String.format( "  merges      %d in %.1f s, %.1f MB in, %.1f MB out, peak buffer %.1f MB%n", merges.get(), mergeNanos.get() / 1e9,
+                                      megabytes( mergeBytesIn.get() ), megabytes( mergeBytesOut.get() ), megabytes( peakMergeBufferedBytes.get() )));
+        ProbeStats stats = dictionaryStats;
+        if ( stats != null ) {
+            report.append( String.format( "  dictionary  %s%n", stats.toString().replace( "\n", "\n          " )));
+        }
+        report.append( String.format( "  peak heap   %.1f MB%n", megabytes( peakHeapBytes() )));
+        return report.toString();
+    }
+}
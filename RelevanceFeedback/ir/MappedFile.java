@@ -0,0 +1,168 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ *   A view of a file mapped into memory, read-only unless it is opened
+ *   for writing.
+ *
+ *   A single MappedByteBuffer cannot be larger than 2 GB, so the file is
+ *   mapped in chunks of CHUNK_SIZE bytes. Values that straddle two chunks
+ *   are put together byte by byte. All reads are absolute, so one
+ *   MappedFile can be shared by several threads.
+ */
+public class MappedFile {
+
+    /** Size of every mapped chunk except possibly the last one. */
+    static final long CHUNK_SIZE = 1L << 30;
+
+    /** The mapped chunks of the file, in order. */
+    private final MappedByteBuffer[] chunks;
+
+    /** The length of the file in bytes. */
+    private final long length;
+
+
+    /**
+     *  Maps the whole file into memory, read-only.
+     */
+    public MappedFile( File file ) throws IOException {
+        this( file, false );
+    }
+
+
+    /**
+     *  Maps the whole file into memory, for writing too if writable. The
+     *  changes are written back to the file by the system, or by force().
+     */
+    public MappedFile( File file, boolean writable ) throws IOException {
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        try ( FileChannel channel = writable ? FileChannel.open( file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE )
+                                             : FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+            length = channel.size();
+            chunks = new MappedByteBuffer[(int)(( length + CHUNK_SIZE - 1 ) / CHUNK_SIZE )];
+            for ( int i=0; i<chunks.length; i++ ) {
+                long start = i * CHUNK_SIZE;
+                chunks[i] = channel.map( mode, start, Math.min( CHUNK_SIZE, length - start ));
+            }
+        }
+    }
+
+
+    /** The length of the mapped file in bytes. */
+    public long length() {
+        return length;
+    }
+
+
+    /** Reads the byte at position pos. */
+    public byte get( long pos ) {
+        return chunks[(int)( pos / CHUNK_SIZE )].get( (int)( pos % CHUNK_SIZE ));
+    }
+
+
+    /** Reads the big-endian int starting at position pos. */
+    public int getInt( long pos ) {
+        int offset = (int)( pos % CHUNK_SIZE );
+        MappedByteBuffer chunk = chunks[(int)( pos / CHUNK_SIZE )];
+        if ( offset + 4 <= chunk.limit() ) {
+            return chunk.getInt( offset );
+        }
+        int value = 0;
+        for ( int i=0; i<4; i++ ) {
+            value = ( value << 8 ) | ( get( pos + i ) & 0xFF );
+        }
+        return value;
+    }
+
+
+    /** Reads the big-endian long starting at position pos. */
+    public long getLong( long pos ) {
+        int offset = (int)( pos % CHUNK_SIZE );
+        MappedByteBuffer chunk = chunks[(int)( pos / CHUNK_SIZE )];
+        if ( offset + 8 <= chunk.limit() ) {
+            return chunk.getLong( offset );
+        }
+        long value = 0;
+        for ( int i=0; i<8; i++ ) {
+            value = ( value << 8 ) | ( get( pos + i ) & 0xFF );
+        }
+        return value;
+    }
+
+
+    /** Writes the byte at position pos. */
+    public void put( long pos, byte value ) {
+        chunks[(int)( pos / CHUNK_SIZE )].put( (int)( pos % CHUNK_SIZE ), value );
+    }
+
+
+    /** Writes a big-endian int starting at position pos. */
+    public void putInt( long pos, int value ) {
+        int offset = (int)( pos % CHUNK_SIZE );
+        MappedByteBuffer chunk = chunks[(int)( pos / CHUNK_SIZE )];
+        if ( offset + 4 <= chunk.limit() ) {
+            chunk.putInt( offset, value );
+            return;
+        }
+        for ( int i=0; i<4; i++ ) {
+            put( pos + i, (byte)( value >>> ( 24 - 8 * i )));
+        }
+    }
+
+
+    /** Writes a big-endian long starting at position pos. */
+    public void putLong( long pos, long value ) {
+        int offset = (int)( pos % CHUNK_SIZE );
+        MappedByteBuffer chunk = chunks[(int)( pos / CHUNK_SIZE )];
+        if ( offset + 8 <= chunk.limit() ) {
+            chunk.putLong( offset, value );
+            return;
+        }
+        for ( int i=0; i<8; i++ ) {
+            put( pos + i, (byte)( value >>> ( 56 - 8 * i )));
+        }
+    }
+
+
+    /** Writes the changes made through a writable mapping to the file. */
+    public void force() {
+        for ( MappedByteBuffer chunk : chunks ) {
+            chunk.force();
+        }
+    }
+
+
+    /**
+     *  Returns a buffer with the size bytes starting at position pos. The
+     *  buffer shares the mapped memory unless the range straddles two chunks,
+     *  in which case the bytes are copied.
+     */
+    public ByteBuffer slice( long pos, int size ) {
+        int offset = (int)( pos % CHUNK_SIZE );
+        MappedByteBuffer chunk = chunks[(int)( pos / CHUNK_SIZE )];
+        if ( offset + size <= chunk.limit() ) {
+            ByteBuffer view = chunk.duplicate();
+            view.position( offset );
+            view.limit( offset + size );
+            return view.slice();
+        }
+        byte[] copy = new byte[size];
+        for ( int i=0; i<size; i++ ) {
+            copy[i] = get( pos + i );
+        }
+        return ByteBuffer.wrap( copy );
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ *   Finds the k best documents of a tf-idf query with the MaxScore algorithm.
+ *
+ *   Every term has an upper bound on the score it can give a document:
+ *   its weight times its idf times the largest tf / length in its postings
+ *   list. The terms are ordered by increasing bound. Once k documents are
+ *   kept, the terms whose bounds add up to no more than the score of the
+ *   k-th document are non-essential: a document found only in their lists
+ *   cannot enter the top k. Documents are then taken one at a time from
+ *   the lists of the essential terms only, and the non-essential lists
+ *   are only looked at (by galloping) for documents whose bound is still
+ *   high enough.
+ *
+ *   The score of a kept document is summed in query order, as in the
+ *   term-at-a-time evaluation, and ties are broken by docID, so the top k
+ *   is the same as the first k results of a full ranking.
+ */
+public class MaxScoreEvaluator {
+
+    /**
+     *  Bounds are raised by this factor, so that rounding errors in the
+     *  sums can never prune a document that belongs in the top k.
+     */
+    static final double BOUND_SLACK = 1 + 1e-9;
+
+    final Index index;
+    final DocumentStore documents;
+    final NormalizationType normalizationType;
+    final int k;
+
+    /** The terms with a postings list, in query order, with their weights. */
+    Postings[] lists;
+    double[] weights;
+    double[] idfs;
+    double[] bounds;
+
+    /** Cursor of every list, and the docID under it (Integer.MAX_VALUE past the end). */
+    int[] cursors;
+    int[] docs;
+
+    /** Score given by every term to the current document, 0 if it is not in the list. */
+    double[] termScores;
+
+    /** Indices of the terms, by increasing bound. */
+    int[] byBound;
+
+    /** boundSums[i] is the sum of the bounds of the i terms with the lowest bounds. */
+    double[] boundSums;
+
+    /** Bounded min-heap of the best documents, the worst one at the root. */
+    int[] heapDocs;
+    double[] heapScores;
+    int heapSize = 0;
+
+    /** Number of documents given a full score. */
+    long scored = 0;
+
+
+    public MaxScoreEvaluator( Index index, NormalizationType normalizationType, int k ) {
+        this.index = index;
+        this.documents = index.getDocuments();
+        this.normalizationType = normalizationType;
+        this.k = k;
+        heapDocs = new int[k];
+        heapScores = new double[k];
+    }
+
+
+    /**
+     *  Tells whether MaxScore gives the same results as the term-at-a-time
+     *  evaluation for these weights, which needs them non-negative.
+     */
+    public static boolean applies( double[] weights ) {
+        for ( double weight : weights ) {
+            if ( weight < 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     *  A lower bound of the number of documents matching the query, known
+     *  after search(): the documents scored, or the documents of the
+     *  longest postings list if there are more.
+     */
+    public int matchesAtLeast() {
+        long matches = scored;
+        for ( Postings list : lists ) {
+            matches = Math.max( matches, list.size() );
+        }
+        return (int) Math.min( Integer.MAX_VALUE, matches );
+    }
+
+
+    /**
+     *  Returns the k best documents with their scores, best first.
+     *  weights[i] is the weight of the term of postingsLists.get(i).
+     */
+    public PostingsList search( ArrayList<Postings> postingsLists, double[] weights ) {
+        int n = prepare( postingsLists, weights );
+
+        // byBound[0..firstEssential) are the non-essential terms
+        int firstEssential = 0;
+
+        while ( true ) {
+            int docID = Integer.MAX_VALUE;
+            for ( int i=firstEssential; i<n; i++ ) {
+                docID = Math.min( docID, docs[byBound[i]] );
+            }
+            if ( docID == Integer.MAX_VALUE ) {
+                break;
+            }
+
+            // A first bound from the bounds of the essential terms in the
+            // document, then a tighter one from their scores
+            boolean candidate = heapSize < k;
+            if ( !candidate ) {
+                double bound = boundSums[firstEssential];
+                for ( int i=firstEssential; i<n; i++ ) {
+                    if ( docs[byBound[i]] == docID ) {
+                        bound += bounds[byBound[i]];
+                    }
+                }
+                candidate = bound > heapScores[0];
+            }
+            double length = 0;
+            if ( candidate ) {
+                length = documents.length( docID, normalizationType );
+                double bound = boundSums[firstEssential];
+                for ( int i=firstEssential; i<n; i++ ) {
+                    int t = byBound[i];
+                    termScores[t] = termScore( t, docID, length );
+                    bound += termScores[t] * BOUND_SLACK;
+                }
+                candidate = heapSize < k || bound > heapScores[0];
+            }
+
+            if ( candidate ) {
+                for ( int i=0; i<firstEssential; i++ ) {
+                    int t = byBound[i];
+                    if ( docs[t] < docID ) {
+                        moveTo( t, lists[t].advance( cursors[t], docID ));
+                    }
+                    termScores[t] = termScore( t, docID, length );
+                }
+                double score = 0;
+                for ( int t=0; t<n; t++ ) {
+                    score += termScores[t];
+                }
+                scored++;
+                if ( keep( docID, score )) {
+                    while ( firstEssential < n && boundSums[firstEssential + 1] <= heapScores[0] ) {
+                        firstEssential++;
+                    }
+                }
+            }
+
+            for ( int i=firstEssential; i<n; i++ ) {
+                int t = byBound[i];
+                if ( docs[t] == docID ) {
+                    moveTo( t, cursors[t] + 1 );
+                }
+            }
+        }
+
+        return topDocuments();
+    }
+
+
+    /**
+     *  Sets up the terms with a postings list, their bounds and cursors.
+     *
+     *  @return The number of terms.
+     */
+    int prepare( ArrayList<Postings> postingsLists, double[] queryWeights ) {
+        int N = documents.size();
+
+        int n = 0;
+        for ( Postings postingsList : postingsLists ) {
+            if ( postingsList != null && postingsList.size() > 0 ) {
+                n++;
+            }
+        }
+        lists = new Postings[n];
+        weights = new double[n];
+        for ( int i=0, t=0; i<postingsLists.size(); i++ ) {
+            Postings postingsList = postingsLists.get( i );
+            if ( postingsList != null && postingsList.size() > 0 ) {
+                lists[t] = postingsList;
+                weights[t++] = queryWeights[i];
+            }
+        }
+        idfs = new double[n];
+        bounds = new double[n];
+        cursors = new int[n];
+        docs = new int[n];
+        termScores = new double[n];
+        Integer[] terms = new Integer[n];
+        for ( int i=0; i<n; i++ ) {
+            idfs[i] = Math.log( (double) N / lists[i].size() );
+            bounds[i] = bound( i, lists[i].maxNormalizedTf( normalizationType, index ));
+            terms[i] = i;
+        }
+        Arrays.sort( terms, ( a, b ) -> Double.compare( bounds[a], bounds[b] ));
+        byBound = new int[n];
+        for ( int i=0; i<n; i++ ) {
+            byBound[i] = terms[i];
+        }
+        boundSums = new double[n + 1];
+        for ( int i=0; i<n; i++ ) {
+            boundSums[i + 1] = boundSums[i] + bounds[byBound[i]];
+        }
+
+        for ( int t=0; t<n; t++ ) {
+            docs[t] = lists[t].get( 0 ).docID;
+        }
+        return n;
+    }
+
+
+    /**
+     *  The score term t gives to the document under its cursor, computed as
+     *  in RankedSearch, or 0 if the cursor is not on the document.
+     */
+    double termScore( int t, int docID, double length ) {
+        if ( docs[t] != docID ) {
+            return 0;
+        }
+        return weights[t] * ( lists[t].get( cursors[t] ).tf() * idfs[t] ) / length;
+    }
+
+
+    /**
+     *  The bound on the score of term i for a largest tf / length, with some
+     *  slack. A term that scores 0 everywhere has bound 0, even when the
+     *  largest tf / length is not known (infinite).
+     */
+    double bound( int i, double maxNormalizedTf ) {
+        double factor = weights[i] * idfs[i];
+        return factor == 0 ? 0 : factor * maxNormalizedTf * BOUND_SLACK;
+    }
+
+
+    /** Moves the cursor of term t to the given index of its list. */
+    void moveTo( int t, int cursor ) {
+        cursors[t] = cursor;
+        docs[t] = cursor < lists[t].size() ? lists[t].get( cursor ).docID : Integer.MAX_VALUE;
+    }
+
+
+    /**
+     *  Offers a document to the heap. Documents come in increasing docID
+     *  order, so a document that only ties with the worst kept one loses.
+     *
+     *  @return true if the heap is full after the document was kept.
+     */
+    boolean keep( int docID, double score ) {
+        if ( heapSize < k ) {
+            int i = heapSize++;
+            while ( i > 0 ) {
+                int parent = ( i - 1 ) >>> 1;
+                if ( !worse( score, docID, heapScores[parent], heapDocs[parent] )) {
+                    break;
+                }
+                heapDocs[i] = heapDocs[parent];
+                heapScores[i] = heapScores[parent];
+                i = parent;
+            }
+            heapDocs[i] = docID;
+            heapScores[i] = score;
+            return heapSize == k;
+        }
+        if ( score <= heapScores[0] ) {
+            return false;
+        }
+        int i = 0;
+        while ( true ) {
+            int child = 2 * i + 1;
+            if ( child >= heapSize ) {
+                break;
+            }
+            if ( child + 1 < heapSize && worse( heapScores[child + 1], heapDocs[child + 1], heapScores[child], heapDocs[child] )) {
+                child++;
+            }
+            if ( !worse( heapScores[child], heapDocs[child], score, docID )) {
+                break;
+            }
+            heapDocs[i] = heapDocs[child];
+            heapScores[i] = heapScores[child];
+            i = child;
+        }
+        heapDocs[i] = docID;
+        heapScores[i] = score;
+        return true;
+    }
+
+
+    /** Tells whether document 1 ranks below document 2. */
+    static boolean worse( double score1, int docID1, double score2, int docID2 ) {
+        int c = Double.compare( score1, score2 );
+        return c != 0 ? c < 0 : docID1 > docID2;
+    }
+
+
+    /**
+     *  Returns the kept documents in docID order. RankedPostingsList sorts
+     *  them by score, and keeps that order for ties.
+     */
+    PostingsList topDocuments() {
+        Integer[] order = new Integer[heapSize];
+        for ( int i=0; i<heapSize; i++ ) {
+            order[i] = i;
+        }
+        Arrays.sort( order, ( a, b ) -> Integer.compare( heapDocs[a], heapDocs[b] ));
+        PostingsList answer = new PostingsList();
+        for ( int i : order ) {
+            answer.add( new PostingsEntry( heapDocs[i], heapScores[i] ));
+        }
+        return answer;
+    }
+}
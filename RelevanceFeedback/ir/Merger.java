@@ -1,494 +1,217 @@
-/*  
+/*
  *   This file is part of the computer assignment for the
  *   Information Retrieval course at KTH.
- * 
+ *
  *   Damian Valle, 2020
- */  
+ */
 
 package ir;
 
 import java.io.*;
 import java.util.*;
-import java.nio.charset.*;
 import java.nio.ByteBuffer;
 
-public class Merger extends Thread {
-	
-	/** The directory where the persistent index files are stored. */
-    public static final String INDEXDIR = "./index";
-
-    /** The data file 1 name */
-    public static final String DATA_FNAME1 = "data1";
-
-    /** The data file 2 name */
-    public static final String DATA_FNAME2 = "data2";
-    
-    /** The data file merged name */
-    public static final String DATA_FNAME3 = "data_merged";
-    
-    /** The data (the PostingsLists) are stored in this file. */
-    RandomAccessFile dataFile1;
-
-    /** The data (the PostingsLists) are stored in this file. */
-    RandomAccessFile dataFile2;
-    
-    /** The data (the PostingsLists) are stored in this file. */
-    RandomAccessFile dataFileMerged;
-    
-    String filenames;
-    
-    private long merged_free = 0L;
-    
-    /**
-     *   A helper class representing one entry in the dictionary hashtable.
-     *   IS THIS ENTRY REFERRING A LONG POINTER OR THE FULL <WORD, POSTINGSLISTS>?
-     */ 
-    public class Entry {
-        
-    	public String word;
-    	public PostingsList postingsList;
-    	
-    	public Entry(String word, PostingsList postingsList) {
-    		this.word = word;
-        	this.postingsList = postingsList;
-        }
-    	
-    	/**
-    	 * 	Gets an Entry object from a serialized entry.
-    	 * 	The following syntax is used: word#docID1;offset1;offset2#docID2;offset1*offset2*offset3
-    	 * 
-    	 * 	Feisimo usar esto de constructor a ver si lo arreglo.
-    	 */
-    	public Entry(String s) {
-    		PostingsList postingsList = new PostingsList();
-    		String[] split;
-    		String[] offsets;
-    		
-    		split = s.split("#");
-    		
-    		this.word = split[0];
-    		
-    		for( int i=1; i<split.length; i++ )	{
-    			
-    			offsets = split[i].split(";");
-    			
-    			for( int j=1; j<offsets.length; j++ ) {
-    				postingsList.add(Integer.parseInt(offsets[0]), Integer.parseInt(offsets[j]));
-    			}
-    		}
-    		
-    		this.postingsList = postingsList;
-    	}
-    	
-    	/**
-    	 * 	Gets the String serialization of an entry.
-    	 * 	The following syntax is used: word#docID1;offset1;offset2#docID2;offset1;offset2;offset3
-    	 */
-    	public String serialize() {
-    		
-    		String serialized = this.word;
-    		Iterator<PostingsEntry> iter = this.postingsList.iterator();
-    		PostingsEntry entry;
-    		ArrayList<Integer> offsetList;
-    		
-    		while(iter.hasNext()) {
-    			entry = iter.next();
-    			
-    			serialized += "#" + Integer.toString(entry.docID);
-    			
-    			for( int offset : entry.offsetList ) {
-    				serialized += ";" + Integer.toString(offset);
-    			}
-    			
-    		}
-    		
-    		return serialized;
-    	}
-    	
-    	public String serializeEntry() {
-    		
-    		var builder = new StringBuilder();
-    		
-    		builder.append(this.word);
-    		
-    		Iterator<PostingsEntry> iter = this.postingsList.iterator();
-    		PostingsEntry entry;
-    		
-    		while(iter.hasNext()) {
-    			entry = iter.next();
-    			
-    			builder.append("#" + Integer.toString(entry.docID));
-    			
-    			for( int offset : entry.offsetList ) {
-    				builder.append(";" + Integer.toString(offset));
-    			}
-    			
-    		}
-    		
-    		
-    		return builder.toString();
-    	}
-    	
-    }
-	
-	public Merger(int dataFileCount) {
-		System.err.println("Started merger with dataFileCount: " + Integer.toString(dataFileCount));
-		//System.err.println("data" + Integer.toString(dataFileCount) + " and data_merged" + Integer.toString(dataFileCount) + " should exist now.");
-		
-		try {
-			dataFile1 = new RandomAccessFile( "./index/data" + Integer.toString(dataFileCount), "rw" );
-			dataFile2 = new RandomAccessFile( "./index/data_merged" + Integer.toString(dataFileCount), "rw" );
-			dataFileMerged = new RandomAccessFile( "./index/data_merged" + Integer.toString(dataFileCount+1), "rw" );
-			
-			filenames = "./index/data" + Integer.toString(dataFileCount) + "   ./index/data_merged" + Integer.toString(dataFileCount);
-        } catch ( IOException e ) {
-            e.printStackTrace();
-        }
-	}
-	
-	public Entry readEntry(long ptr, RandomAccessFile dataFile) {
-		
-		int size = Integer.parseInt(readData(ptr, 9, dataFile));
-		String serializedEntry = readData(ptr+9, size, dataFile);
-		
-		return new Entry(serializedEntry);
+/**
+ *   Merges sorted runs of the ScalablePersistentHashedIndex into one data file.
+ *
+ *   Every run is a data file whose records are sorted by word. All runs are
+ *   read sequentially at the same time, and a heap keyed on the current word
+ *   of every run picks the next word to write. A word found in a single run
+ *   is copied to the output as it is, without decoding its postings.
+ *
+ *   The documents are indexed in docID order, so the docIDs of a run all
+ *   come after those of the older runs, except for a document split between
+ *   two runs. The postings of a word found in several runs are therefore
+ *   concatenated in one pass, reading them in run order and encoding them
+ *   as they are read, without building a postings list.
+ *
+ *   At most MAX_FAN_IN runs are open at the same time. With more runs,
+ *   groups of MAX_FAN_IN are first merged into intermediate runs.
+ *
+ *   The final pass reports every word it writes, with the position of its
+ *   record, so that the dictionary can be built without reading the output.
+ *   It also encodes every record again, with the block bounds computed from
+ *   the final document lengths, which the runs do not have.
+ */
+public class Merger {
+
+	/** Maximum number of runs read at the same time. */
+	public static final int MAX_FAN_IN = 64;
+
+	/** The directory where the intermediate runs are written. */
+	File tmpDir;
+
+	/** The index whose document lengths give the block bounds of the output. */
+	Index index;
+
+	/** Number of intermediate runs written so far, used to name them. */
+	private int intermediateRuns = 0;
+
+
+	/**
+	 *   Receives the words written to the output file of the final pass.
+	 */
+	public interface TermListener {
+		void termWritten(String word, long ptr);
 	}
-	
+
+
 	/**
-     *  Reads data from a data file
-     */ 
-    String readData( long ptr, int size , RandomAccessFile dataFile) {
-        try {
-            dataFile.seek( ptr );
-            byte[] data = new byte[size];
-            dataFile.readFully( data );
-            return new String(data);
-        } catch ( IOException e ) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-    
-    /**
-     *  Writes data to the data file at a specified place.
-     *
-     *  @return The number of bytes written.
-     */ 
-    int writeData( String dataString, long ptr, RandomAccessFile dataFile ) {
-        try {
-            dataFile.seek( ptr );
-            
-            String finalString = String.format("%09d", dataString.getBytes().length) + dataString;
-            
-            byte[] data = finalString.getBytes();
-            
-            dataFile.write( data );
-            return data.length;
-        } catch ( IOException e ) {
-            e.printStackTrace();
-            return -1;
-        }
-    }
-	
-	public void run() {
-		
-		long ptr1 = 0L;
-		long ptr2 = 0L;
-		
-		Entry entry1;
-		Entry entry2;
-		
-		Entry mergedEntry;
-		
-		ArrayList<PostingsList> postingsLists = new ArrayList<PostingsList>();
-		
-		PostingsList postingsList;
-		
-		try {
-			
-			dataFile1.seek(ptr1);
-			dataFile2.seek(ptr2);
-		
-			while(ptr1 < dataFile1.length()-5 && ptr2 < dataFile2.length()-5) {
-				
-				/**
-				System.err.println("while(ptr1 < dataFile1.length()-5 && ptr2 < dataFile2.length()-5) {");
-				System.err.println("ptr1: " + Long.toString(ptr1) + "\ndataFile1.length: " + Long.toString(dataFile1.length()));
-				System.err.println("ptr2: " + Long.toString(ptr2) + "\ndataFile2.length: " + Long.toString(dataFile2.length()));
-				System.err.println();
-				*/
-				
-				
-				entry1 = readEntry(ptr1, dataFile1);
-				entry2 = readEntry(ptr2, dataFile2);
-				
-				//System.err.println("Read entry from dataFile1: " + entry1.word);
-				//System.err.println("Read entry from dataFile2: " + entry1.word);
-				//System.err.println();
-				
-				//System.err.println(entry1.word + "\t" + entry2.word);
-				
-				if(entry1.word.equals(entry2.word)) {
-					//System.err.println(entry1.word + " and " + entry2.word + " are equal.");
-					
-					postingsList = mergePostingsLists(entry1.postingsList, entry2.postingsList);
-					
-					mergedEntry = new Entry(entry1.word, postingsList);
-					
-					merged_free += writeData(mergedEntry.serializeEntry(), merged_free, dataFileMerged);
-					
-					/**
-					System.err.println(entry1.serializeEntry());
-					System.err.println();
-					System.err.println(entry2.serializeEntry());
-					System.err.println();
-					System.err.println(mergedEntry.serializeEntry());
-					*/
-					
-					//Thread.sleep(1000);
-					
-					
-					ptr1 += 9 + Integer.parseInt(readData(ptr1, 9, dataFile1));
-					ptr2 += 9 + Integer.parseInt(readData(ptr2, 9, dataFile2));
-					
-				} else if (entry1.word.compareTo(entry2.word) < 0) {
-					
-					merged_free += writeData(entry1.serializeEntry(), merged_free, dataFileMerged);
-					
-					ptr1 += 9 + Integer.parseInt(readData(ptr1, 9, dataFile1));
-					
-				} else {
-					merged_free += writeData(entry2.serializeEntry(), merged_free, dataFileMerged);
-				
-					ptr2 += 9 + Integer.parseInt(readData(ptr2, 9, dataFile2));
-				}
+	 *   Reads the records of one run in order.
+	 */
+	static class RunReader {
+
+		/** Position of the run in the list of runs, older runs come first. */
+		final int order;
+
+		final DataInputStream in;
+
+		/** The record under the cursor: its word and its payload. */
+		String word;
+		byte[] payload;
+
+		RunReader(File run, int order) throws IOException {
+			this.order = order;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+			if (in.readInt() != PostingsCodec.MAGIC || in.readInt() != PostingsCodec.VERSION) {
+				in.close();
+				throw new IOException("Unsupported postings format in " + run);
 			}
-			
-			System.err.println("Hemos salio");
-			
-			/**
-			
-			if(ptr1 < dataFile1.length()-5) {
-				while(ptr1 < dataFile1.length()-5) {
-					
-					entry1 = readEntry(ptr1, dataFile1);
-					
-					merged_free += writeData(entry1.serializeEntry(), merged_free, dataFileMerged);
-					
-					ptr1 += 9 + Integer.parseInt(readData(ptr1, 9, dataFile1));
-				}
-			} else if(ptr2 < dataFile2.length()-5) {
-					while(ptr2 < dataFile2.length()-5) {
-					
-					entry2 = readEntry(ptr2, dataFile2);
-					
-					merged_free += writeData(entry2.serializeEntry(), merged_free, dataFileMerged);
-					
-					ptr2 += 9 + Integer.parseInt(readData(ptr2, 9, dataFile2));
-				}
+		}
+
+		/** Moves to the next record, returns false at the end of the run. */
+		boolean next() throws IOException {
+			int size;
+			try {
+				size = in.readInt();
+			} catch (EOFException e) {
+				in.close();
+				return false;
 			}
-			*/
-			
-		} catch(Exception e) {
-			e.printStackTrace();
-			System.err.println("ptr1 y ptr2: " + Long.toString(ptr1) + " " + Long.toString(ptr2));
-			System.err.println(filenames);
-			System.err.println("Ha saltao error del merge eof probablemente.");
+			payload = new byte[size];
+			in.readFully(payload);
+			word = PostingsCodec.decodeWord(ByteBuffer.wrap(payload));
+			return true;
+		}
+
+		/** Reads the postings of the record under the cursor. */
+		PostingsCodec.PostingsReader postings() {
+			ByteBuffer buffer = ByteBuffer.wrap(payload);
+			PostingsCodec.decodeWord(buffer);
+			return new PostingsCodec.PostingsReader(buffer);
 		}
-		
-		//dataFile1.close();
-		//dataFile2.close();
-		//dataFileMerged.close();
-		
-		System.err.println("Merge bien hecho (creo)");
-		
 	}
-	
-	public PostingsList mergePostingsLists(PostingsList p1, PostingsList p2) {
-		
-    	PostingsList answer = new PostingsList();
-    	
-    	int p1_idx = 0;
-    	int p2_idx = 0;
-    	
-    	PostingsEntry postingsEntry1, postingsEntry2;
-    	ArrayList<Integer> offsets;
-    	
-    	while(p1_idx < p1.size() && p2_idx < p2.size()) {
-    		
-    		postingsEntry1 = p1.get(p1_idx);
-    		postingsEntry2 = p2.get(p2_idx);
-    		
-    		if(postingsEntry1.docID == postingsEntry2.docID) {
-    			
-    			offsets = mergeOffsets(postingsEntry1.offsetList, postingsEntry2.offsetList);
-    			answer.add(new PostingsEntry(postingsEntry1.docID, offsets));
-    			
-    			p1_idx++;
-    			p2_idx++;
-    			
-    		} else if (postingsEntry1.docID < postingsEntry2.docID) {
-    			answer.add(postingsEntry1);
-    			p1_idx++;
-    		} else {
-    			answer.add(postingsEntry2);
-    			p2_idx++;
-    		}
-    	}
-    	
-    	if(p1_idx < p1.size()) {
-    		for(int i=p1_idx; i<p1.size(); i++) {
-    			answer.add(p1.get(i));
-    		}
-    	} else if (p2_idx < p2.size()) {
-    		for(int i=p2_idx; i<p2.size(); i++) {
-    			answer.add(p2.get(i));
-    		}
-    	}
-    	
-    	return answer;
+
+
+	public Merger(File tmpDir, Index index) {
+		this.tmpDir = tmpDir;
+		this.index = index;
 	}
-	
-	public ArrayList<Integer> mergeOffsets(ArrayList<Integer> offsets1, ArrayList<Integer> offsets2) {
-		HashSet<Integer> hashset = new HashSet<>();
-		hashset.addAll(offsets1);
-		hashset.addAll(offsets2);
-		
-		return new ArrayList<>(hashset);
+
+
+	/**
+	 *  Merges the runs into the output file.
+	 *
+	 *  @param runs     The sorted runs, in the order they were written.
+	 *  @param output   The data file to write.
+	 *  @param listener Told about every word written to the output, may be null.
+	 *  @return The number of words written.
+	 */
+	public long merge(List<File> runs, File output, TermListener listener) throws IOException {
+		ArrayList<File> intermediate = new ArrayList<File>();
+		List<File> level = runs;
+
+		while (level.size() > MAX_FAN_IN) {
+			ArrayList<File> next = new ArrayList<File>();
+			for (int i=0; i<level.size(); i+=MAX_FAN_IN) {
+				File merged = new File(tmpDir, "merge" + (intermediateRuns++));
+				mergeGroup(level.subList(i, Math.min(i + MAX_FAN_IN, level.size())), merged, null, false);
+				next.add(merged);
+			}
+			for (File f : level) {
+				if (intermediate.remove(f)) f.delete();
+			}
+			intermediate.addAll(next);
+			level = next;
+		}
+
+		long words = mergeGroup(level, output, listener, true);
+
+		for (File f : intermediate) {
+			f.delete();
+		}
+		return words;
 	}
+
+
 	/**
-	public PostingsList postingsIntersection(PostingsList p1, PostingsList p2) {
-		
-    	PostingsList answer = new PostingsList();
-    	
-    	int p1_idx = 0;
-    	int p2_idx = 0;
-    	
-    	
-    	
-    	Iterator<PostingsList> iter = postingsLists.iterator();
-    	
-    	PostingsList p1 = iter.next();
-    	PostingsList p2; // = iter.next(); I need to put this inside the do while so that after the first one you can keep iterating.
-    	
-    	PostingsEntry postingsEntry1, postingsEntry2;
-    	
-    	int pe1_idx, pe2_idx;
-    	
-    	HashSet<Integer> hashset; 
-    	
-    	do {
-    		
-    		answer = new PostingsList();
-    		
-    		p2 = iter.next();
-    		
-    		if(p1==null && p2==null) {
-    			System.err.println("Ambos son null");
-    			return null;
-    		} else if(p1==null) {
-    			System.err.println("Uno null");
-    			return p2;
-    		} else if(p2==null) {
-    			System.err.println("Uno null");
-    			return p1;
-    		}
-    		
-    		pe1_idx = 0;
-    		pe2_idx = 0;
-    		
-    		postingsEntry1 = p1.get(pe1_idx++);
-    		postingsEntry2 = p2.get(pe2_idx++);
-    		
-			if( postingsEntry1.docID == postingsEntry2.docID ) {
-				
-				hashset = new HashSet<>();
-				hashset.addAll(postingsEntry1.offsetList);
-				hashset.addAll(postingsEntry2.offsetList);
-				
-				answer.add(new PostingsEntry(postingsEntry1.docID, new ArrayList<>(hashset)));
-				
-				if(pe1_idx >= p1.size()) {
-					postingsEntry1 = null;
-				} else {
-					postingsEntry1 = p1.get(pe1_idx++);
+	 *  One k-way merge pass over a group of runs. The final pass encodes
+	 *  every record again, the other passes copy the records found in a
+	 *  single run as they are.
+	 */
+	long mergeGroup(List<File> runs, File output, TermListener listener, boolean finalPass) throws IOException {
+		PriorityQueue<RunReader> heap = new PriorityQueue<RunReader>(Math.max(1, runs.size()), (r1, r2) -> {
+			int c = r1.word.compareTo(r2.word);
+			return c != 0 ? c : Integer.compare(r1.order, r2.order);
+		});
+
+		for (int i=0; i<runs.size(); i++) {
+			RunReader reader = new RunReader(runs.get(i), i);
+			if (reader.next()) {
+				heap.add(reader);
+			}
+		}
+
+		long words = 0;
+		long ptr = PostingsCodec.FILE_HEADER_SIZE;
+		ArrayList<RunReader> same = new ArrayList<RunReader>();
+		PostingsCodec.RecordEncoder encoder = new PostingsCodec.RecordEncoder(finalPass ? index : null);
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 16))) {
+			out.writeInt(PostingsCodec.MAGIC);
+			out.writeInt(PostingsCodec.VERSION);
+
+			while (!heap.isEmpty()) {
+				same.clear();
+				same.add(heap.poll());
+				while (!heap.isEmpty() && heap.peek().word.equals(same.get(0).word)) {
+					same.add(heap.poll());
 				}
-				
-				if(pe2_idx >= p2.size()) {
-					postingsEntry2 = null;
-				} else {
-					postingsEntry2 = p2.get(pe2_idx++);
+
+				if (listener != null) {
+					listener.termWritten(same.get(0).word, ptr);
 				}
-			}
-    		
-			while( postingsEntry1 != null && postingsEntry2 != null ) {
-    			
-    			if( postingsEntry1.docID == postingsEntry2.docID ) {
-    				
-    				hashset = new HashSet<>();
-    				hashset.addAll(postingsEntry1.offsetList);
-    				hashset.addAll(postingsEntry2.offsetList);
-    				
-    				answer.add(new PostingsEntry(postingsEntry1.docID, new ArrayList<>(hashset)));
-    				
-    				if(pe1_idx >= p1.size()) {
-    					postingsEntry1 = null;
-    				} else {
-    					postingsEntry1 = p1.get(pe1_idx++);
-    				}
-    				
-    				if(pe2_idx >= p2.size()) {
-    					postingsEntry2 = null;
-    				} else {
-    					postingsEntry2 = p2.get(pe2_idx++);
-    				}
-    				
-    				
-    			} else if ( postingsEntry1.docID < postingsEntry2.docID ) {
-    				
-    				answer.add(postingsEntry1);
-    				
-    				if(pe1_idx >= p1.size()) {
-    					postingsEntry1 = null;
-    				} else {
-    					postingsEntry1 = p1.get(pe1_idx++);
-    				}
-    			} else {
-    				
-    				answer.add(postingsEntry2);
-    				
-    				if(pe2_idx >= p2.size()) {
-    					postingsEntry2 = null;
-    				} else {
-    					postingsEntry2 = p2.get(pe2_idx++);
-    				}
-    			}
-    		}
-			
-			
-			if(postingsEntry1 != null) {
-				answer.add(postingsEntry1);
-				while( (pe1_idx) < p1.size() ) {
-					answer.add( p1.get(pe1_idx++) );
+
+				if (same.size() == 1 && !finalPass) {
+					// The record is copied as it is
+					byte[] payload = same.get(0).payload;
+					out.writeInt(payload.length);
+					out.write(payload);
+					ptr += PostingsCodec.RECORD_HEADER_SIZE + payload.length;
+				} else {
+					// The heap gives the runs in order, and older runs hold lower docIDs
+					encoder.start(same.get(0).word);
+					for (RunReader reader : same) {
+						PostingsCodec.PostingsReader postings = reader.postings();
+						while (postings.next()) {
+							encoder.add(postings.docID, postings.offsets, postings.count);
+						}
+					}
+					byte[] record = encoder.finish();
+					out.write(record);
+					ptr += record.length;
 				}
-			} else if(postingsEntry2 != null) {
-				answer.add(postingsEntry2);
-				while( (pe2_idx) < p2.size() ) {
-					answer.add( p2.get(pe2_idx++) );
-					System.err.println("atascao");
+				words++;
+
+				for (RunReader reader : same) {
+					if (reader.next()) {
+						heap.add(reader);
+					}
 				}
 			}
-			
-			
-    		if( answer.size() > 0 && iter.hasNext() ) {
-    			p1 = answer;
-    		}
-    		
-    		
-    	} while( iter.hasNext() ); // Used do while because the 2 long query wouldnt execute otherwise.
-    	
-    	return answer;
-    }
-	*/
-	
-}
\ No newline at end of file
+		}
+
+		return words;
+	}
+
+}
@@ -13,6 +13,7 @@ import java.io.*;
 import java.util.*;
 import java.nio.charset.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 
 /*
@@ -37,27 +38,65 @@ public class PersistentHashedIndex implements Index {
     /** The dictionary file name */
     public static final String DATA_FNAME = "data";
 
-    /** The terms file name */
+    /** The terms file name, the sorted terms, see TermDictionary */
     public static final String TERMS_FNAME = "terms";
 
-    /** The doc info file name */
+    /** The doc info file name, the document statistics in the old text format */
     public static final String DOCINFO_FNAME = "docInfo";
 
-    /** The dictionary hash table on disk can fit this many entries. */
-    public static final long TABLESIZE = 3499999L;
+    /** The document store file name, see DocumentStore */
+    public static final String DOCUMENTS_FNAME = "documents";
+
+    /**
+     *  The dictionary hash table is sized when the index is committed so that
+     *  at most this fraction of its slots is used.
+     */
+    public static final double MAX_LOAD_FACTOR = 0.6;
+
+    /**
+     *  The dictionary file starts with the number of slots in the hash table
+     *  (8 bytes) and the number of terms stored in it (8 bytes).
+     */
+    public static final int DICTIONARY_HEADER_SIZE = 16;
+
+    /**
+     *  Size of one slot in the dictionary hash table: the pointer to the entry
+     *  in the data file (8 bytes), the 64-bit hash of the term (8 bytes) and
+     *  the length of the term (4 bytes). A probe whose hash or length differs
+     *  from the token is skipped without reading the data file.
+     */
+    public static final int DICTIONARY_ENTRY_SIZE = 20;
 
     /** The dictionary hash table is stored in this file. */
     RandomAccessFile dictionaryFile;
 
+    /** The dictionary hash table on disk can fit this many entries. */
+    long tableSize = 0;
+
+    /** Probe statistics of the last dictionary written. */
+    ProbeStats dictionaryStats;
+
     /** The data (the PostingsLists) are stored in this file. */
     RandomAccessFile dataFile;
 
     /** Pointer to the first free memory cell in the data file. */
     long free = 0L;
 
+    /** Read-only memory mappings of the dictionary and data files, see mapIndexFiles. */
+    MappedFile mappedDictionary, mappedData;
+
     /** The cache as a main-memory hash map. */
     HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
 
+    /** The names, lengths and PageRank of the documents. */
+    DocumentStore documents = new DocumentStore();
+
+    /** The terms in sorted order, or null for an index written without them. */
+    TermDictionary terms;
+
+    /** The lists read last from the data file, or null to always read them. */
+    PostingsCache postingsCache;
+
     /**
      *   A helper class representing one entry in the dictionary hashtable.
      *   IS THIS ENTRY REFERRING A LONG POINTER OR THE FULL <WORD, POSTINGSLISTS>?
@@ -65,18 +104,17 @@ public class PersistentHashedIndex implements Index {
     public class Entry {
         
     	public String word;
-    	public PostingsList postingsList;
+    	public Postings postingsList;
     	
-    	public Entry(String word, PostingsList postingsList) {
+    	public Entry(String word, Postings postingsList) {
     		this.word = word;
         	this.postingsList = postingsList;
         }
     	
     	/**
-    	 * 	Gets an Entry object from a serialized entry.
-    	 * 	The following syntax is used: word#docID1;offset1;offset2#docID2;offset1*offset2*offset3
-    	 * 
-    	 * 	Feisimo usar esto de constructor a ver si lo arreglo.
+    	 * 	Gets an Entry object from an entry in the old text format, which
+    	 * 	is only read when converting an index to the binary format.
+    	 * 	The following syntax is used: word#docID1;offset1;offset2#docID2;offset1;offset2;offset3
     	 */
     	public Entry(String s) {
     		PostingsList postingsList = new PostingsList();
@@ -100,59 +138,25 @@ public class PersistentHashedIndex implements Index {
     	}
     	
     	/**
-    	 * 	Gets the String serialization of an entry.
-    	 * 	The following syntax is used: word#docID1;offset1;offset2#docID2;offset1;offset2;offset3
+    	 * 	Gets an Entry object from the payload of a binary record.
     	 */
-    	public String serialize() {
-    		
-    		String serialized = this.word;
-    		Iterator<PostingsEntry> iter = this.postingsList.iterator();
-    		PostingsEntry entry;
-    		ArrayList<Integer> offsetList;
-    		
-    		while(iter.hasNext()) {
-    			entry = iter.next();
-    			
-    			serialized += "#" + Integer.toString(entry.docID);
-    			
-    			for( int offset : entry.offsetList ) {
-    				serialized += ";" + Integer.toString(offset);
-    			}
-    			
+    	public Entry(ByteBuffer payload) {
+    		QueryTrace.enter(QueryTrace.Stage.DECODE);
+    		try {
+    			this.word = PostingsCodec.decodeWord(payload);
+    			this.postingsList = PostingsCodec.decodePostings(payload);
+    		} finally {
+    			QueryTrace.exit(QueryTrace.Stage.DECODE);
     		}
-    		
-    		//serialized += "\n";
-    		
-    		return serialized;
     	}
     	
-    	public String serializeEntry() {
-    		
-    		var builder = new StringBuilder();
-    		
-    		builder.append(this.word);
-    		
-    		Iterator<PostingsEntry> iter = this.postingsList.iterator();
-    		PostingsEntry entry;
-    		
-    		while(iter.hasNext()) {
-    			entry = iter.next();
-    			
-    			builder.append("#" + Integer.toString(entry.docID));
-    			
-    			for( int offset : entry.offsetList ) {
-    				builder.append(";" + Integer.toString(offset));
-    			}
-    			
-    		}
-    		
-    		//serialized += "\n";
-    		
-    		return builder.toString();
+    	/**
+    	 * 	Gets the binary record of an entry, see PostingsCodec.
+    	 */
+    	public byte[] serializeEntry() {
+    		return PostingsCodec.encode(this.word, this.postingsList, PersistentHashedIndex.this);
     	}
     	
-    	
-    	
     }
     
     /**
@@ -168,11 +172,55 @@ public class PersistentHashedIndex implements Index {
         }
 
         try {
-            readDocInfo();
-        } catch ( FileNotFoundException e ) {
+            if ( dictionaryFile.length() >= DICTIONARY_HEADER_SIZE ) {
+                dictionaryFile.seek( 0 );
+                tableSize = dictionaryFile.readLong();
+            }
+            if ( dataFile.length() > 0 && !PostingsCodec.hasFileHeader( dataFile )) {
+                if ( PostingsCodec.fileVersion( dataFile ) < 0 ) {
+                    System.err.println( "The index on disk uses the old text format, convert it with: java ir.PostingsCodec -convert" );
+                } else {
+                    System.err.println( "The index on disk uses an older binary format, index the collection again" );
+                }
+            }
         } catch ( IOException e ) {
             e.printStackTrace();
         }
+
+        try {
+            readDocuments();
+            readTerms();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Switches the index to read-only mode: the dictionary and data files are
+     *  mapped into memory and lookups are served from the mappings instead of
+     *  seeking in the RandomAccessFiles. Used when the index is loaded from disk.
+     *  The path table of the document store is mapped too.
+     */
+    public void mapIndexFiles() {
+        try {
+            mappedDictionary = new MappedFile( new File( INDEXDIR + "/" + DICTIONARY_FNAME ));
+            mappedData = new MappedFile( new File( INDEXDIR + "/" + DATA_FNAME ));
+            if ( mappedDictionary.length() >= DICTIONARY_HEADER_SIZE ) {
+                tableSize = mappedDictionary.getLong( 0 );
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            mappedDictionary = null;
+            mappedData = null;
+        }
+        File documentsFile = new File( INDEXDIR + "/" + DOCUMENTS_FNAME );
+        if ( documentsFile.exists() ) {
+            try {
+                documents = DocumentStore.map( documentsFile );
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
@@ -180,17 +228,9 @@ public class PersistentHashedIndex implements Index {
      *
      *  @return The number of bytes written.
      */ 
-    int writeData( String dataString, long ptr ) {
+    int writeData( byte[] data, long ptr ) {
         try {
-        	//System.err.println("Printing this dataString: " + dataString);
             dataFile.seek( ptr );
-            
-            String finalString = String.format("%09d", dataString.getBytes().length) + dataString;
-            
-            byte[] data = finalString.getBytes();
-            //System.err.println("Size of 7 digits padded: " + Integer.toString(String.format("%07d", data.length).getBytes().length));
-            
-            //data = finalString.getBytes();
             dataFile.write( data );
             return data.length;
         } catch ( IOException e ) {
@@ -203,40 +243,152 @@ public class PersistentHashedIndex implements Index {
     /**
      *  Reads data from the data file
      */ 
-    String readData( long ptr, int size ) {
+    byte[] readData( long ptr, int size ) {
         try {
-            dataFile.seek( ptr );
-            byte[] data = new byte[size];
-            dataFile.readFully( data );
-            return new String(data);
+            ByteBuffer data = ByteBuffer.allocate( size );
+            readFully( dataFile, data, ptr );
+            return data.array();
         } catch ( IOException e ) {
             e.printStackTrace();
             return null;
         }
     }
     
+    /**
+     *  Fills the buffer with the bytes of the file starting at ptr. The file
+     *  pointer is not used, so several threads can read the same file at once.
+     */
+    static void readFully( RandomAccessFile file, ByteBuffer buffer, long ptr ) throws IOException {
+        FileChannel channel = file.getChannel();
+        while ( buffer.hasRemaining() ) {
+            if ( channel.read( buffer, ptr + buffer.position() ) < 0 ) {
+                throw new EOFException();
+            }
+        }
+    }
+    
     /**
      *  Reads data from the dictionary file
      */ 
     long readDictionary( long ptr ) {
+        if ( mappedDictionary != null ) {
+            return ptr + 8 <= mappedDictionary.length() ? mappedDictionary.getLong( ptr ) : 0;
+        }
         try {
-            dictionaryFile.seek( ptr );
-            return dictionaryFile.readLong();
+            ByteBuffer slot = ByteBuffer.allocate( 8 );
+            readFully( dictionaryFile, slot, ptr );
+            return slot.getLong( 0 );
         } catch ( Exception e ) {
             //e.printStackTrace();
             return 0;
         }
     }
     
-    void writeDictionary( long ptr, long dataPtr ) {
+    /**
+     *  Checks whether the dictionary slot at ptr holds a term with the given
+     *  hash and length.
+     */
+    boolean dictionaryMatches( long ptr, long termHash, int termLength ) {
+        if ( mappedDictionary != null ) {
+            return mappedDictionary.getLong( ptr + 8 ) == termHash && mappedDictionary.getInt( ptr + 16 ) == termLength;
+        }
+        try {
+            ByteBuffer slot = ByteBuffer.allocate( 12 );
+            readFully( dictionaryFile, slot, ptr + 8 );
+            return slot.getLong( 0 ) == termHash && slot.getInt( 8 ) == termLength;
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+    
+    void writeDictionary( long ptr, long dataPtr, String token ) {
     	try {
             dictionaryFile.seek( ptr );
             dictionaryFile.writeLong( dataPtr );
+            dictionaryFile.writeLong( termHash( token ));
+            dictionaryFile.writeInt( token.length() );
         } catch ( IOException e ) {
             e.printStackTrace();
         }
     }
     
+    /**
+     *  64-bit FNV-1a hash of the characters of a term.
+     */
+    static long termHash( String token ) {
+    	long hash = 0xcbf29ce484222325L;
+    	for ( int i=0; i<token.length(); i++ ) {
+    		hash ^= token.charAt(i);
+    		hash *= 0x100000001b3L;
+    	}
+    	return hash;
+    }
+    
+    /**
+     *  The position in the dictionary file of the first slot probed for a term.
+     */
+    long firstSlot( long termHash ) {
+    	return DICTIONARY_HEADER_SIZE + Math.floorMod(termHash, tableSize) * DICTIONARY_ENTRY_SIZE;
+    }
+    
+    /**
+     *  The position in the dictionary file of the slot probed after ptr.
+     */
+    long nextSlot( long ptr ) {
+    	ptr += DICTIONARY_ENTRY_SIZE;
+    	return ptr < DICTIONARY_HEADER_SIZE + tableSize * DICTIONARY_ENTRY_SIZE ? ptr : DICTIONARY_HEADER_SIZE;
+    }
+    
+    /**
+     *  The number of slots for a dictionary holding the given number of terms:
+     *  the first prime above terms / MAX_LOAD_FACTOR.
+     */
+    static long tableSizeFor( long terms ) {
+    	long size = Math.max(11, (long) Math.ceil(terms / MAX_LOAD_FACTOR) + 1);
+    	while (!isPrime(size)) {
+    		size++;
+    	}
+    	return size;
+    }
+    
+    private static boolean isPrime( long n ) {
+    	if (n % 2 == 0) return n == 2;
+    	for (long d = 3; d * d <= n; d += 2) {
+    		if (n % d == 0) return false;
+    	}
+    	return true;
+    }
+    
+    /**
+     *  Empties the dictionary file and lays out a table sized for the given
+     *  number of terms, with its header.
+     */
+    void createDictionaryTable( long terms ) throws IOException {
+    	tableSize = tableSizeFor(terms);
+    	dictionaryStats = new ProbeStats(tableSize);
+    	
+    	dictionaryFile.setLength(0);
+    	dictionaryFile.seek(0);
+    	dictionaryFile.writeLong(tableSize);
+    	dictionaryFile.writeLong(terms);
+    	dictionaryFile.setLength(DICTIONARY_HEADER_SIZE + tableSize * DICTIONARY_ENTRY_SIZE);
+    }
+    
+    /**
+     *  Puts a term in the first free slot of its probe sequence.
+     */
+    void placeInDictionary( String token, long dataPtr ) {
+    	long hash = firstSlot(termHash(token));
+    	int probes = 1;
+    	while(!isDictionaryNull(hash)) {
+    		hash = nextSlot(hash);
+    		probes++;
+    	}
+    	dictionaryStats.record(probes);
+    	writeDictionary(hash, dataPtr, token);
+    }
+    
 
 
     // ==================================================================
@@ -260,50 +412,82 @@ public class PersistentHashedIndex implements Index {
      */
     Entry readEntry( long ptr ) {   
     	
-    	String size = readData(ptr, 9);
-    	
-    	int sizeint = Integer.parseInt(size);
-    	
-    	String serializedEntry = readData(ptr+9, sizeint);
+    	ByteBuffer payload;
+    	QueryTrace.enter(QueryTrace.Stage.POSTINGS_IO);
+    	try {
+    		int size;
+    		if (mappedData != null) {
+    			size = mappedData.getInt(ptr);
+    			payload = mappedData.slice(ptr + PostingsCodec.RECORD_HEADER_SIZE, size);
+    		} else {
+    			size = ByteBuffer.wrap(readData(ptr, PostingsCodec.RECORD_HEADER_SIZE)).getInt();
+    			payload = ByteBuffer.wrap(readData(ptr + PostingsCodec.RECORD_HEADER_SIZE, size));
+    		}
+    		QueryTrace.count(QueryTrace.Counter.POSTINGS_BYTES, PostingsCodec.RECORD_HEADER_SIZE + size);
+    	} finally {
+    		QueryTrace.exit(QueryTrace.Stage.POSTINGS_IO);
+    	}
     	
-    	return new Entry(serializedEntry);
+    	return new Entry(payload);
     }
 
 
     // ==================================================================
 
+    /**
+     *  Sorts the terms of the index and writes them to the terms file.
+     */
+    void writeTerms( Collection<String> words ) throws IOException {
+        terms = new TermDictionary(words);
+        terms.write(new File(INDEXDIR + "/" + TERMS_FNAME));
+    }
+
+
+    /**
+     *  Reads the terms file, if the index has one.
+     */
+    private void readTerms() throws IOException {
+        File file = new File(INDEXDIR + "/" + TERMS_FNAME);
+        if (file.exists()) {
+            terms = TermDictionary.read(file);
+        }
+    }
+
+
     /**
      *  Writes the document names and document lengths to file.
      *
      * @throws IOException  { exception_description }
      */
-    public void writeDocInfo() throws IOException {
-        FileOutputStream fout = new FileOutputStream( INDEXDIR + "/docInfo", true);
-        for (Map.Entry<Integer,String> entry : docNames.entrySet()) {
-            Integer key = entry.getKey();
-            String docInfoEntry = key + ";" + entry.getValue() + ";" + docLengths.get(key) + ";" + docLengthsEuclidean.get(key) + "\n";
-            fout.write(docInfoEntry.getBytes());
-        }
-        fout.close();
+    public void writeDocuments() throws IOException {
+        documents.write(new File(INDEXDIR + "/" + DOCUMENTS_FNAME));
     }
 
 
     /**
-     *  Reads the document names and document lengths from file, and
-     *  put them in the appropriate data structures.
+     *  Reads the document names and document lengths from file, or from
+     *  the docInfo file of an index in the old text format.
      *
      * @throws     IOException  { exception_description }
      */
-    private void readDocInfo() throws IOException {
-        File file = new File( INDEXDIR + "/docInfo" );
+    private void readDocuments() throws IOException {
+        File file = new File( INDEXDIR + "/" + DOCUMENTS_FNAME );
+        if (file.exists()) {
+            documents = DocumentStore.read(file);
+            return;
+        }
+        file = new File( INDEXDIR + "/" + DOCINFO_FNAME );
+        if (!file.exists()) {
+            return;
+        }
         FileReader freader = new FileReader(file);
         try (BufferedReader br = new BufferedReader(freader)) {
             String line;
             while ((line = br.readLine()) != null) {
                 String[] data = line.split(";");
-                docNames.put(new Integer(data[0]), data[1]);
-                docLengths.put(new Integer(data[0]), new Integer(data[2]));
-                docLengthsEuclidean.put(new Integer(data[0]), Double.parseDouble(data[3]));
+                int docID = Integer.parseInt(data[0]);
+                documents.addDocument(docID, data[1], Integer.parseInt(data[2]));
+                documents.setEuclideanLength(docID, Double.parseDouble(data[3]));
             }
         }
         freader.close();
@@ -319,80 +503,197 @@ public class PersistentHashedIndex implements Index {
      *  Write the index to files.
      */
     public void writeIndex() {
-        int collisions = 0;
         try {
-            // Write the 'docNames' and 'docLengths' hash maps to a file
-            writeDocInfo();
+            // Write the document names and lengths to a file
+            writeDocuments();
+            clearPostingsCache();
+
+            // The data file starts with the format header, so no entry is stored at 0
+            PostingsCodec.writeFileHeader(dataFile);
+            free = PostingsCodec.FILE_HEADER_SIZE;
 
             // Write the dictionary and the postings list
+            createDictionaryTable(index.size());
+            
             String token;
             PostingsList postingsList;
             Entry entry;
-            long hash;
-            boolean col = false;
             
             for (HashMap.Entry<String, PostingsList> item : index.entrySet()) {
                 token = item.getKey();
                 postingsList = item.getValue();
                 
-                hash = Math.abs(token.hashCode()%TABLESIZE);
-                hash*=8;
-                
-                col = false;
-                
-                while(!isDictionaryNull(hash)) {
-                	hash+=8;
-                	
-                	col = true;
-                }
-                
-                if(col) collisions++;
-
-                writeDictionary(hash, free);
+                placeInDictionary(token, free);
                 entry = new Entry(token, postingsList);
                 
                 free += Long.valueOf(writeData(entry.serializeEntry(), free));
             }
+            writeTerms(index.keySet());
         } catch ( IOException e ) {
             e.printStackTrace();
         }
-        System.err.println( collisions + " collisions." );
+        System.err.println( dictionaryStats );
     }
-    
-    
-    
+
+
+    /**
+     *  Rewrites an index stored in the old text format (a %09d length followed by
+     *  word#docID;offset;offset#...) in the binary format, and rebuilds the dictionary
+     *  so that it points to the new records.
+     */
+    public void convertTextIndex() throws IOException {
+    	if (PostingsCodec.fileVersion(dataFile) >= 0) {
+    		System.err.println("The index is already in a binary format.");
+    		return;
+    	}
+
+    	File textData = new File(INDEXDIR + "/" + DATA_FNAME);
+    	File binaryData = new File(INDEXDIR + "/" + DATA_FNAME + ".bin");
+
+    	dataFile.close();
+    	dataFile = new RandomAccessFile(binaryData, "rw");
+    	dataFile.setLength(0);
+
+    	PostingsCodec.writeFileHeader(dataFile);
+    	free = PostingsCodec.FILE_HEADER_SIZE;
+
+    	// A first pass over the old records counts the terms to size the dictionary
+    	long terms = 0;
+    	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(textData)))) {
+    		byte[] size = new byte[9];
+    		while (true) {
+    			try {
+    				in.readFully(size);
+    			} catch (EOFException e) {
+    				break;
+    			}
+    			in.skipNBytes(Integer.parseInt(new String(size)));
+    			terms++;
+    		}
+    	}
+    	createDictionaryTable(terms);
+
+    	int converted = 0;
+    	ArrayList<String> words = new ArrayList<String>();
+    	try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(textData)))) {
+    		byte[] size = new byte[9];
+    		while (true) {
+    			try {
+    				in.readFully(size);
+    			} catch (EOFException e) {
+    				break;
+    			}
+    			byte[] serialized = new byte[Integer.parseInt(new String(size))];
+    			in.readFully(serialized);
+
+    			Entry entry = new Entry(new String(serialized));
+
+    			placeInDictionary(entry.word, free);
+    			words.add(entry.word);
+
+    			free += writeData(entry.serializeEntry(), free);
+    			converted++;
+    		}
+    	}
+
+    	dataFile.close();
+    	if (!textData.delete() || !binaryData.renameTo(textData)) {
+    		throw new IOException("Could not replace " + textData + " with " + binaryData);
+    	}
+    	dataFile = new RandomAccessFile(textData, "rw");
+    	writeDocuments();
+    	writeTerms(words);
+    	clearPostingsCache();
+
+    	System.err.println("Converted " + converted + " entries to the binary format.");
+    }
+
+
+
     /**
      *  Returns the postings for a specific term, or null
      *  if the term is not in the index.
      */
-    public PostingsList getPostings( String token ) {
+    public Postings getPostings( String token ) {
+    	if (postingsCache == null) {
+    		return readPostings(token);
+    	}
+    	Postings postingsList = postingsCache.get(token);
+    	if (postingsList == null) {
+    		postingsList = readPostings(token);
+    		if (postingsList != null) {
+    			postingsCache.put(token, postingsList);
+    		}
+    	}
+    	return postingsList;
+    }
+    
+    /**
+     *  Looks a term up in the dictionary and reads its postings from the
+     *  data file, or returns null if the term is not in the index.
+     */
+    Postings readPostings( String token ) {
     	
-    	long hash = Math.abs(token.hashCode()%TABLESIZE);
+    	if (tableSize == 0) {
+    		return null;
+    	}
     	
-    	hash*=8;
+    	QueryTrace.enter(QueryTrace.Stage.DICTIONARY);
+    	try {
+    		long termHash = termHash(token);
+    		long hash = firstSlot(termHash);
     	
-    	Entry e;
-    	long ptr;
-    	int i = 1000;
+    		Entry e;
+    		long ptr;
     		
-    	while(!isDictionaryNull(hash)) {
-    		ptr = readDictionary(hash);
+    		while((ptr = readDictionary(hash)) != 0) {
     		
-    		e = readEntry(ptr);
+    			// Only terms with the same hash and length are worth decoding
+    			if(dictionaryMatches(hash, termHash, token.length())) {
+    				e = readEntry(ptr);
         		
-        	if(e.word.equals(token)) {
-        		return e.postingsList;
-        	}
+        			if(e.word.equals(token)) {
+        				return e.postingsList;
+        			}
+    			}
         	
-        	hash+=8;
-    	}
+        		hash = nextSlot(hash);
+    		}
     	
-    	return null;
+    		return null;
+    	} finally {
+    		QueryTrace.exit(QueryTrace.Stage.DICTIONARY);
+    	}
     }
     
     public PostingsList getPostingsOnTheFly( String token ) {
     	return index.get(token);
     }
+    
+    public DocumentStore getDocuments() {
+    	return documents;
+    }
+    
+    public TermDictionary getTerms() {
+    	return terms;
+    }
+    
+    /**
+     *  Serves the postings read from disk from a cache bounded to the given
+     *  number of bytes, see PostingsCache.
+     */
+    public void setPostingsCache( long bytes ) {
+    	postingsCache = new PostingsCache(bytes);
+    }
+    
+    /**
+     *  Drops the cached postings after the data file was rewritten.
+     */
+    void clearPostingsCache() {
+    	if (postingsCache != null) {
+    		postingsCache.clear();
+    	}
+    }
 
 
     /**
@@ -444,9 +745,16 @@ public class PersistentHashedIndex implements Index {
     		}
     		freader.close();
     		
-    		for (Map.Entry<Integer, String> entry : docNames.entrySet()) {
-    			String[] docpath = entry.getValue().split("/");
-    			docPageRank.put(entry.getKey(), pageRankHash.get(davisTitles.get(docpath[docpath.length - 1])));
+    		for (int docID = 0; docID < documents.limit(); docID++) {
+    			String name = documents.name(docID);
+    			if (name == null) {
+    				continue;
+    			}
+    			String[] docpath = name.split("/");
+    			Double pageRank = pageRankHash.get(davisTitles.get(docpath[docpath.length - 1]));
+    			if (pageRank != null) {
+    				documents.setPageRank(docID, pageRank);
+    			}
     		}
     		
     		davisTitles = null;
@@ -0,0 +1,128 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ *   A read-only list of postings, as searches see it.
+ *
+ *   PostingsList is the one that can be built and changed, the lists of
+ *   an in-memory index and the intermediate results of a search. A
+ *   BlockPostingsList is read from disk and decodes its blocks on demand,
+ *   and a RankedPostingsList is the result of a ranked query, sorted by
+ *   score as it is read.
+ *
+ *   Except in a ranked result, the postings are in increasing docID
+ *   order, which advance() and the block methods rely on. The defaults
+ *   below only use size() and get(); the lists that know more about their
+ *   layout override them.
+ */
+public interface Postings {
+
+    /** Number of postings in a block, the unit of the block-max bounds. */
+    public static final int BLOCK_SIZE = 128;
+
+    /** Number of postings in this list. */
+    public int size();
+
+    /** Returns the ith posting. */
+    public PostingsEntry get( int i );
+
+
+    /** The postings in order. */
+    public default Iterator<PostingsEntry> iterator() {
+        return new Iterator<PostingsEntry>() {
+            int next = 0;
+
+            public boolean hasNext() {
+                return next < size();
+            }
+
+            public PostingsEntry next() {
+                if ( next >= size() ) {
+                    throw new NoSuchElementException();
+                }
+                return get( next++ );
+            }
+        };
+    }
+
+
+    /**
+     *  Returns the index of the first entry at or after index from whose
+     *  docID is at least docID, or size() if there is none.
+     *
+     *  The search gallops: it looks 1, 2, 4, ... entries ahead of from until
+     *  it passes docID, then searches that last stretch in halves. Jumping
+     *  over k entries this way takes O(log k) steps instead of k.
+     */
+    public default int advance( int from, int docID ) {
+        int size = size();
+        if ( from >= size || get( from ).docID >= docID ) {
+            return from;
+        }
+
+        // get(low).docID < docID, and high is past it or at the end
+        int low = from;
+        int step = 1;
+        int high = from + 1;
+        while ( high < size && get( high ).docID < docID ) {
+            low = high;
+            step <<= 1;
+            high = low + step;
+        }
+        high = Math.min( high, size );
+
+        low++;
+        while ( low < high ) {
+            int mid = ( low + high ) >>> 1;
+            if ( get( mid ).docID < docID ) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+
+    /** Number of blocks of BLOCK_SIZE postings, the last one may be shorter. */
+    public default int blockCount() {
+        return ( size() + BLOCK_SIZE - 1 ) / BLOCK_SIZE;
+    }
+
+
+    /** The last docID of a block. */
+    public default int blockLastDocID( int block ) {
+        return get( Math.min( size(), ( block + 1 ) * BLOCK_SIZE ) - 1 ).docID;
+    }
+
+
+    /** The largest tf / length of a document in a block. */
+    public default double blockMaxNormalizedTf( int block, NormalizationType normalizationType, Index index ) {
+        double max = 0;
+        int end = Math.min( size(), ( block + 1 ) * BLOCK_SIZE );
+        for ( int i=block*BLOCK_SIZE; i<end; i++ ) {
+            max = Math.max( max, RankedSearch.normalizedTf( index, get( i ), normalizationType ));
+        }
+        return max;
+    }
+
+
+    /** The largest tf / length of a document in the list. */
+    public default double maxNormalizedTf( NormalizationType normalizationType, Index index ) {
+        double max = 0;
+        for ( int b=0; b<blockCount(); b++ ) {
+            max = Math.max( max, blockMaxNormalizedTf( b, normalizationType, index ));
+        }
+        return max;
+    }
+}
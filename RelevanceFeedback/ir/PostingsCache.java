@@ -0,0 +1,149 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ *   Keeps the postings lists of the terms used last, up to a budget of
+ *   bytes, so that a term asked for again is not read from disk.
+ *
+ *   The lists are kept in a LinkedHashMap in access order, and the least
+ *   recently used ones are dropped when the budget is exceeded. The size
+ *   of a list is estimated with the same rough costs as the buffer of a
+ *   ScalablePersistentHashedIndex, for the list once fully decoded: a
+ *   BlockPostingsList only decodes the blocks that are read, so its size
+ *   is bounded by counting every byte of its record as an offset.
+ *
+ *   All methods are synchronized, the cache can be shared by threads.
+ */
+public class PostingsCache {
+
+    /** A cached list with the size it was estimated at. */
+    private static class CachedList {
+        final Postings postingsList;
+        final long bytes;
+
+        CachedList( Postings postingsList, long bytes ) {
+            this.postingsList = postingsList;
+            this.bytes = bytes;
+        }
+    }
+
+    /** The cached lists, least recently used first. */
+    private final LinkedHashMap<String,CachedList> lists = new LinkedHashMap<String,CachedList>( 16, 0.75f, true );
+
+    /** The estimated size of the cached lists is kept under this many bytes. */
+    private final long budget;
+
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+
+    public PostingsCache( long budget ) {
+        this.budget = budget;
+    }
+
+
+    /**
+     *  Returns the cached list of a term, or null if it is not cached.
+     */
+    public synchronized Postings get( String token ) {
+        CachedList cached = lists.get( token );
+        if ( cached == null ) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return cached.postingsList;
+    }
+
+
+    /**
+     *  Caches the list of a term, dropping the least recently used lists
+     *  until the cache fits in its budget. A list larger than the whole
+     *  budget is not cached.
+     */
+    public synchronized void put( String token, Postings postingsList ) {
+        long size = estimateBytes( token, postingsList );
+        if ( size > budget ) {
+            return;
+        }
+        CachedList previous = lists.put( token, new CachedList( postingsList, size ));
+        if ( previous != null ) {
+            bytes -= previous.bytes;
+        }
+        bytes += size;
+
+        Iterator<Map.Entry<String,CachedList>> eldest = lists.entrySet().iterator();
+        while ( bytes > budget ) {
+            bytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+
+    /** Drops all cached lists, for instance when the index on disk was rewritten. */
+    public synchronized void clear() {
+        lists.clear();
+        bytes = 0;
+    }
+
+
+    /**
+     *  The estimated heap size of the list of a term once decoded.
+     */
+    static long estimateBytes( String token, Postings postingsList ) {
+        long size = ScalablePersistentHashedIndex.BYTES_PER_TERM + 2 * token.length()
+            + (long) postingsList.size() * ScalablePersistentHashedIndex.BYTES_PER_ENTRY;
+        if ( postingsList instanceof BlockPostingsList ) {
+            // Every offset takes at least one byte of the record
+            size += (long) ((BlockPostingsList) postingsList).encodedBytes() * ScalablePersistentHashedIndex.BYTES_PER_OFFSET;
+        } else {
+            for ( int i=0; i<postingsList.size(); i++ ) {
+                size += (long) postingsList.get( i ).offsetCount * ScalablePersistentHashedIndex.BYTES_PER_OFFSET;
+            }
+        }
+        return size;
+    }
+
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+
+    /** The estimated size of the cached lists in bytes. */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return String.format( "Postings cache: %d terms, %d of %d MB, %d hits, %d misses (hit ratio %.2f), %d evictions",
+                              lists.size(), bytes >> 20, budget >> 20, hits, misses, lookups == 0 ? 0.0 : (double) hits / lookups, evictions );
+    }
+}
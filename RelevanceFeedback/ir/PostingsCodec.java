@@ -0,0 +1,456 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ *   Binary serialization of postings lists for the data file on disk.
+ *
+ *   The data file starts with a fixed header of FILE_HEADER_SIZE bytes
+ *   (the magic number followed by the format version). After the header,
+ *   every entry is stored as a record:
+ *
+ *     int    payload length in bytes
+ *     varint length of the word in bytes, followed by the UTF-8 word
+ *     varint number of postings (document frequency)
+ *     varint number of blocks of Postings.BLOCK_SIZE postings
+ *     for every block:
+ *       varint gap from the last docID of the previous block to its own
+ *       varint length of the block data in bytes
+ *       float  largest tf / number of words of a document in the block
+ *       float  largest tf / Euclidean length of a document in the block
+ *     the data of every block, and in it for every posting:
+ *       varint docID gap (to the previous docID in the list)
+ *       varint number of offsets (term frequency)
+ *       varint offset gaps (to the previous offset in the same document)
+ *
+ *   Varints use 7 bits per byte, the high bit telling that more bytes follow.
+ *
+ *   The block table lets a reader find the block of a docID, and bound the
+ *   score of the documents in a block, without decoding any posting. The
+ *   bounds are rounded up to floats, and are infinite when the document
+ *   lengths were not known when the record was written.
+ */
+public final class PostingsCodec {
+
+    /** "IR20" in ASCII, the first four bytes of every binary data file. */
+    public static final int MAGIC = 0x49523230;
+
+    /** Version of the record layout described above. */
+    public static final int VERSION = 2;
+
+    /** Size of the magic number and version at the start of the file. */
+    public static final int FILE_HEADER_SIZE = 8;
+
+    /** Size of the length prefix of every record. */
+    public static final int RECORD_HEADER_SIZE = 4;
+
+
+    private PostingsCodec() {
+    }
+
+
+    /**
+     *  Writes the file header at the start of the given data file.
+     */
+    public static void writeFileHeader( RandomAccessFile file ) throws IOException {
+        file.seek( 0 );
+        file.writeInt( MAGIC );
+        file.writeInt( VERSION );
+    }
+
+
+    /**
+     *  Checks that the file starts with the binary header of the current version.
+     */
+    public static boolean hasFileHeader( RandomAccessFile file ) throws IOException {
+        return fileVersion( file ) == VERSION;
+    }
+
+
+    /**
+     *  Returns the format version in the binary header of the file, or -1
+     *  if the file does not start with one (e.g. the old text format).
+     */
+    public static int fileVersion( RandomAccessFile file ) throws IOException {
+        if ( file.length() < FILE_HEADER_SIZE ) {
+            return -1;
+        }
+        file.seek( 0 );
+        if ( file.readInt() != MAGIC ) {
+            return -1;
+        }
+        return file.readInt();
+    }
+
+
+    /**
+     *  Encodes a word and its postings list as a complete record,
+     *  length prefix included. The block bounds are computed with the
+     *  document lengths of the given index, or left infinite if it is null.
+     */
+    public static byte[] encode( String word, Postings postingsList, Index index ) {
+        RecordEncoder encoder = new RecordEncoder( index );
+        encoder.start( word );
+        for ( int i=0; i<postingsList.size(); i++ ) {
+            PostingsEntry entry = postingsList.get( i );
+            encoder.add( entry.docID, entry.offsets, entry.offsetCount );
+        }
+        return encoder.finish();
+    }
+
+
+    /**
+     *  Reads the word at the start of a record payload. The buffer is left
+     *  positioned at the postings.
+     */
+    public static String decodeWord( ByteBuffer payload ) {
+        int length = getVarInt( payload );
+        byte[] wordBytes = new byte[length];
+        payload.get( wordBytes );
+        return new String( wordBytes, StandardCharsets.UTF_8 );
+    }
+
+
+    /**
+     *  Reads the postings of a record payload, starting at the current
+     *  position of the buffer (right after the word). Only the block table
+     *  is read here, the blocks are decoded when their postings are needed.
+     */
+    public static BlockPostingsList decodePostings( ByteBuffer payload ) {
+        int size = getVarInt( payload );
+        int blocks = getVarInt( payload );
+        int[] blockLastDocIDs = new int[blocks];
+        int[] blockStarts = new int[blocks + 1];
+        float[][] blockBounds = new float[NormalizationType.values().length][blocks];
+
+        int lastDocID = 0;
+        for ( int b=0; b<blocks; b++ ) {
+            lastDocID += getVarInt( payload );
+            blockLastDocIDs[b] = lastDocID;
+            blockStarts[b + 1] = blockStarts[b] + getVarInt( payload );
+            for ( int n=0; n<blockBounds.length; n++ ) {
+                blockBounds[n][b] = payload.getFloat();
+            }
+        }
+
+        ByteBuffer data = payload.slice();
+        data.limit( blockStarts[blocks] );
+        return new BlockPostingsList( data, size, blockStarts, blockLastDocIDs, blockBounds );
+    }
+
+
+    /**
+     *  Decodes the postings of one block into entries[from..to), given the
+     *  last docID of the previous block.
+     */
+    static void decodeBlock( ByteBuffer block, int docID, PostingsEntry[] entries, int from, int to ) {
+        for ( int i=from; i<to; i++ ) {
+            docID += getVarInt( block );
+            int tf = getVarInt( block );
+            int[] offsets = new int[tf];
+            int offset = 0;
+            for ( int j=0; j<tf; j++ ) {
+                offset += getVarInt( block );
+                offsets[j] = offset;
+            }
+            entries[i] = new PostingsEntry( docID, offsets, tf );
+        }
+    }
+
+
+    /**
+     *  Encodes a record from postings given one at a time in docID order,
+     *  without building a postings list, and computes the block table as
+     *  the postings come. A docID given again, as a document split between
+     *  two runs, gets the new offsets added to its posting. The block bounds
+     *  are computed with the document lengths of the given index, or left
+     *  infinite if it is null. An encoder can be reused for many records.
+     */
+    static class RecordEncoder {
+
+        final Index index;
+        final NormalizationType[] normalizations = NormalizationType.values();
+
+        /** The block table and the block data of the record being encoded. */
+        final Encoder table = new Encoder();
+        final Encoder data = new Encoder();
+
+        /** The largest tf / length in the current block, for every normalization. */
+        final double[] blockMax = new double[normalizations.length];
+
+        String word;
+        int size;
+        int blocks;
+        int lastDocID;
+        int blockFirstDocID;
+        int blockStart;
+
+        /** The posting given last, only written when a new docID comes. */
+        int pendingDocID = -1;
+        int[] pendingOffsets = new int[16];
+        int pendingCount;
+
+        RecordEncoder( Index index ) {
+            this.index = index;
+        }
+
+        /** Starts the record of a word. */
+        void start( String word ) {
+            this.word = word;
+            table.size = 0;
+            data.size = 0;
+            size = 0;
+            blocks = 0;
+            lastDocID = 0;
+            blockFirstDocID = 0;
+            blockStart = 0;
+            pendingDocID = -1;
+            Arrays.fill( blockMax, 0 );
+        }
+
+        /** Adds the first count offsets of a posting, in increasing order. */
+        void add( int docID, int[] offsets, int count ) {
+            if ( docID < pendingDocID ) {
+                throw new IllegalArgumentException( "docID " + docID + " after " + pendingDocID + " in the postings of " + word );
+            }
+            if ( docID != pendingDocID ) {
+                writePending();
+                pendingDocID = docID;
+                pendingCount = 0;
+            }
+            if ( pendingCount + count > pendingOffsets.length ) {
+                pendingOffsets = Arrays.copyOf( pendingOffsets, Math.max( pendingOffsets.length * 2, pendingCount + count ));
+            }
+            boolean sorted = pendingCount == 0 || count == 0 || pendingOffsets[pendingCount - 1] < offsets[0];
+            System.arraycopy( offsets, 0, pendingOffsets, pendingCount, count );
+            pendingCount += count;
+            if ( !sorted ) {
+                Arrays.sort( pendingOffsets, 0, pendingCount );
+            }
+        }
+
+        private void writePending() {
+            if ( pendingDocID < 0 ) {
+                return;
+            }
+            data.putVarInt( pendingDocID - lastDocID );
+            lastDocID = pendingDocID;
+            data.putVarInt( pendingCount );
+            int lastOffset = 0;
+            for ( int j=0; j<pendingCount; j++ ) {
+                data.putVarInt( pendingOffsets[j] - lastOffset );
+                lastOffset = pendingOffsets[j];
+            }
+            if ( index != null ) {
+                for ( int n=0; n<normalizations.length; n++ ) {
+                    blockMax[n] = Math.max( blockMax[n], RankedSearch.normalizedTf( index, pendingDocID, pendingCount, normalizations[n] ));
+                }
+            }
+            pendingDocID = -1;
+            if ( ++size % Postings.BLOCK_SIZE == 0 ) {
+                endBlock();
+            }
+        }
+
+        private void endBlock() {
+            table.putVarInt( lastDocID - blockFirstDocID );
+            table.putVarInt( data.size - blockStart );
+            for ( int n=0; n<normalizations.length; n++ ) {
+                double bound = index == null ? Double.POSITIVE_INFINITY : blockMax[n];
+                float rounded = (float) bound;
+                table.putInt( Float.floatToIntBits( rounded < bound ? Math.nextUp( rounded ) : rounded ));
+                blockMax[n] = 0;
+            }
+            blockFirstDocID = lastDocID;
+            blockStart = data.size;
+            blocks++;
+        }
+
+        /** Ends the record and returns it, length prefix included. */
+        byte[] finish() {
+            writePending();
+            if ( size % Postings.BLOCK_SIZE != 0 ) {
+                endBlock();
+            }
+            byte[] wordBytes = word.getBytes( StandardCharsets.UTF_8 );
+            Encoder out = new Encoder();
+            out.ensure( RECORD_HEADER_SIZE + 15 + wordBytes.length + table.size + data.size );
+            out.putInt( 0 );
+            out.putVarInt( wordBytes.length );
+            out.put( wordBytes );
+            out.putVarInt( size );
+            out.putVarInt( blocks );
+            out.put( table.bytes, table.size );
+            out.put( data.bytes, data.size );
+            return out.toRecord();
+        }
+    }
+
+
+    /**
+     *  Reads the postings of a record payload one at a time, starting at the
+     *  current position of the buffer (right after the word), without
+     *  building PostingsEntry objects. The block table is skipped, and the
+     *  offsets of every posting are read into the same array.
+     */
+    static class PostingsReader {
+
+        final ByteBuffer data;
+        int remaining;
+
+        /** The posting under the cursor: its docID and its first count offsets. */
+        int docID = 0;
+        int count;
+        int[] offsets = new int[16];
+
+        PostingsReader( ByteBuffer payload ) {
+            remaining = getVarInt( payload );
+            int blocks = getVarInt( payload );
+            for ( int b=0; b<blocks; b++ ) {
+                getVarInt( payload );
+                getVarInt( payload );
+                payload.position( payload.position() + Float.BYTES * NormalizationType.values().length );
+            }
+            data = payload;
+        }
+
+        /** Moves to the next posting, returns false at the end of the list. */
+        boolean next() {
+            if ( remaining == 0 ) {
+                return false;
+            }
+            remaining--;
+            docID += getVarInt( data );
+            count = getVarInt( data );
+            if ( count > offsets.length ) {
+                offsets = new int[Math.max( offsets.length * 2, count )];
+            }
+            int offset = 0;
+            for ( int j=0; j<count; j++ ) {
+                offset += getVarInt( data );
+                offsets[j] = offset;
+            }
+            return true;
+        }
+    }
+
+
+    /**
+     *  Reads a variable-byte encoded int from the buffer.
+     */
+    public static int getVarInt( ByteBuffer buffer ) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= ( b & 0x7F ) << shift;
+            shift += 7;
+        } while ( b < 0 );
+        return value;
+    }
+
+
+    /**
+     *  A growable byte array with varint support.
+     */
+    static class Encoder {
+
+        byte[] bytes = new byte[64];
+        int size = 0;
+
+        void ensure( int extra ) {
+            if ( size + extra > bytes.length ) {
+                byte[] grown = new byte[Math.max( bytes.length * 2, size + extra )];
+                System.arraycopy( bytes, 0, grown, 0, size );
+                bytes = grown;
+            }
+        }
+
+        void put( byte[] b ) {
+            put( b, b.length );
+        }
+
+        void put( byte[] b, int length ) {
+            ensure( length );
+            System.arraycopy( b, 0, bytes, size, length );
+            size += length;
+        }
+
+        void putInt( int v ) {
+            ensure( 4 );
+            bytes[size++] = (byte)( v >>> 24 );
+            bytes[size++] = (byte)( v >>> 16 );
+            bytes[size++] = (byte)( v >>> 8 );
+            bytes[size++] = (byte) v;
+        }
+
+        void putVarInt( int v ) {
+            ensure( 5 );
+            while ( ( v & ~0x7F ) != 0 ) {
+                bytes[size++] = (byte)( ( v & 0x7F ) | 0x80 );
+                v >>>= 7;
+            }
+            bytes[size++] = (byte) v;
+        }
+
+        /** Fills in the length prefix and returns the record. */
+        byte[] toRecord() {
+            int length = size - RECORD_HEADER_SIZE;
+            bytes[0] = (byte)( length >>> 24 );
+            bytes[1] = (byte)( length >>> 16 );
+            bytes[2] = (byte)( length >>> 8 );
+            bytes[3] = (byte) length;
+            byte[] record = new byte[size];
+            System.arraycopy( bytes, 0, record, 0, size );
+            return record;
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    private static HashMap<String,String> decodeArgs( String[] args ) {
+        HashMap<String,String> decodedArgs = new HashMap<String,String>();
+        int i=0;
+        while ( i < args.length ) {
+            if ( "-convert".equals( args[i] )) {
+                i++;
+                decodedArgs.put( "convert", "true" );
+            } else {
+                System.err.println( "Unknown option: " + args[i] );
+                break;
+            }
+        }
+        return decodedArgs;
+    }
+
+
+    /**
+     *  Converts the text-format index in ./index to the binary format:
+     *
+     *    java -cp classes ir.PostingsCodec -convert
+     */
+    public static void main( String[] arguments ) throws IOException {
+        HashMap<String,String> args = decodeArgs( arguments );
+        if ( args.containsKey( "convert" )) {
+            PersistentHashedIndex index = new PersistentHashedIndex();
+            index.convertTextIndex();
+        } else {
+            System.err.println( "Usage: java ir.PostingsCodec -convert" );
+        }
+    }
+}
@@ -7,6 +7,7 @@
 
 package ir;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -18,8 +19,12 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
     public int docID;
     public double score = 0;
     
-    //mio
-    public ArrayList<Integer> offsetList;
+    /**
+     *  Offsets of the term in the document, in increasing order. Only the
+     *  first offsetCount cells are used, the rest is room to grow.
+     */
+    public int[] offsets;
+    public int offsetCount = 0;
     
     /**
      *  PostingsEntries are compared by their score (only relevant
@@ -32,9 +37,10 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
        return Double.compare( other.score, score );
     }
     
-    public PostingsEntry(int docID, ArrayList<Integer> offsetList) {
+    public PostingsEntry(int docID, int[] offsets, int offsetCount) {
     	this.docID = docID;
-    	this.offsetList = offsetList;
+    	this.offsets = offsets;
+    	this.offsetCount = offsetCount;
     }
 
     public PostingsEntry(int docID) {
@@ -50,5 +56,45 @@ public class PostingsEntry implements Comparable<PostingsEntry>, Serializable {
     	this.score = score;
     }
     
+    /** Appends an offset, growing the array if needed. */
+    public void addOffset(int offset) {
+    	if (offsets == null) {
+    		offsets = new int[2];
+    	} else if (offsetCount == offsets.length) {
+    		offsets = Arrays.copyOf(offsets, Math.max(2, offsetCount * 2));
+    	}
+    	offsets[offsetCount++] = offset;
+    }
+    
+    public int getOffset(int i) {
+    	return offsets[i];
+    }
+    
+    /** The term frequency, i.e. the number of offsets. */
+    public int tf() {
+    	return offsetCount;
+    }
+    
+    /**
+     *  Returns a new entry for the same document with the sorted union of the
+     *  offsets of both entries.
+     */
+    public static PostingsEntry unionOffsets(PostingsEntry e1, PostingsEntry e2) {
+    	int[] merged = new int[e1.offsetCount + e2.offsetCount];
+    	int i = 0, j = 0, n = 0;
+    	while (i < e1.offsetCount || j < e2.offsetCount) {
+    		int next;
+    		if (j == e2.offsetCount || (i < e1.offsetCount && e1.offsets[i] <= e2.offsets[j])) {
+    			next = e1.offsets[i++];
+    		} else {
+    			next = e2.offsets[j++];
+    		}
+    		if (n == 0 || merged[n-1] != next) {
+    			merged[n++] = next;
+    		}
+    	}
+    	return new PostingsEntry(e1.docID, merged, n);
+    }
+    
 }
 
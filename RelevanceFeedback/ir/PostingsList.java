@@ -11,12 +11,22 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Collections;
 
-public class PostingsList {
+/**
+ *  A postings list that can be added to, see Postings.
+ */
+public class PostingsList implements Postings {
     
     /** The postings list */
     public ArrayList<PostingsEntry> list = new ArrayList<PostingsEntry>();
     
-    public double weight = 1;
+    /**
+     *  Upper bounds used by the pruning evaluators: blockBounds[n][b] is the
+     *  largest tf / length of a document in block b, for the NormalizationType
+     *  with ordinal n, and null when not yet computed. Reset when entries are
+     *  added. A row is never changed once published, a new array of rows is
+     *  published instead, so searches can compute bounds concurrently.
+     */
+    volatile double[][] blockBounds;
     
     /** The postings list iterator method. */
     public Iterator<PostingsEntry> iterator(){
@@ -34,40 +44,89 @@ public class PostingsList {
     }
     
     
-    /** Adds a new entry or creates it if it does not yet exist. */
+    /**
+     *  Adds an offset of docID, creating the entry if it does not yet exist.
+     *
+     *  The Indexer hands out docIDs in increasing order, so the entry is either
+     *  the last one or a new one at the end, and both cases take constant time.
+     *  A docID lower than the last one falls back to a binary search, which
+     *  keeps the list sorted by docID.
+     */
     public void add( int docID, int offset ) {
     	
+    	// Read before writing, so indexing pays no volatile store per token
+    	if( blockBounds != null ) {
+    		blockBounds = null;
+    	}
     	if(!list.isEmpty()) {
-    	PostingsEntry lastEntry = list.get(list.size()-1);
-    	
-    	//Potential performance improvement merging both ifs into one and checking that if first one doesnt fulfill the second condition does not evaluate.
+    		PostingsEntry lastEntry = list.get(list.size()-1);
+    		
+    		if( lastEntry.docID == docID ) {
+    			lastEntry.addOffset(offset);
+    			return;
+    		}
+    		
+    		if( lastEntry.docID > docID ) {
+    			addOutOfOrder(docID, offset);
+    			return;
+    		}
+    	}
     	
-    	if( lastEntry.docID == docID ) {
-    		// If we find a match then we just add the offset and leave.
-    		lastEntry.offsetList.add(offset);
-    		return;
-    	} else {
-    		for( PostingsEntry entry : list ) {
-        		if( entry.docID == docID ) {
-        			// If we find a match then we just add the offset and leave.
-        			entry.offsetList.add(offset);
-        			return;
-        		}
-        	}
+    	list.add(newEntry(docID, offset));
+    }
+    
+    /**
+     *  Slow path of add for a docID lower than the last one in the list.
+     */
+    private void addOutOfOrder( int docID, int offset ) {
+    	int low = 0;
+    	int high = list.size() - 1;
+    	while( low <= high ) {
+    		int mid = (low + high) >>> 1;
+    		int midDocID = list.get(mid).docID;
+    		if( midDocID < docID ) {
+    			low = mid + 1;
+    		} else if( midDocID > docID ) {
+    			high = mid - 1;
+    		} else {
+    			list.get(mid).addOffset(offset);
+    			return;
+    		}
     	}
+    	list.add(low, newEntry(docID, offset));
+    }
+    
+    private static PostingsEntry newEntry( int docID, int offset ) {
+    	PostingsEntry entry = new PostingsEntry(docID);
+    	entry.addOffset(offset);
+    	return entry;
+    }
+    
+    /**
+     *  The largest tf / length of a document in a block. The bounds of all
+     *  blocks are computed the first time one is asked for.
+     */
+    public double blockMaxNormalizedTf( int block, NormalizationType normalizationType, Index index ) {
+    	double[][] bounds = blockBounds;
+    	int n = normalizationType.ordinal();
+    	if( bounds == null || bounds[n] == null ) {
+    		double[] max = new double[blockCount()];
+    		for( int i=0; i<size(); i++ ) {
+    			max[i / BLOCK_SIZE] = Math.max(max[i / BLOCK_SIZE], RankedSearch.normalizedTf(index, get(i), normalizationType));
+    		}
+    		bounds = bounds == null ? new double[NormalizationType.values().length][] : bounds.clone();
+    		bounds[n] = max;
+    		blockBounds = bounds;
     	}
-    	
-    	// If there is no match then we create an empty offsetList, add the one offset we have, create a Postings entry and add docID and offsetList.
-    	ArrayList<Integer> offsetList = new ArrayList<Integer>();
-    	offsetList.add(offset);
-    	
-    	PostingsEntry entry = new PostingsEntry(docID, offsetList);
-    	list.add(entry);
+    	return bounds[n][block];
     }
     
     /** Adds a new entry. */
     public void add( PostingsEntry p) {
     	
+    	if( blockBounds != null ) {
+    		blockBounds = null;
+    	}
     	list.add(p);
     }
     
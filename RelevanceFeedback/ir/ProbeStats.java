@@ -0,0 +1,81 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+
+/**
+ *   Statistics on the linear probing done while filling the dictionary
+ *   hash table on disk. The probe length of a term is the number of slots
+ *   looked at before a free one was found, so a term placed in its first
+ *   slot has probe length 1 and every longer probe is a collision.
+ */
+public class ProbeStats {
+
+    /** Number of slots in the table. */
+    long tableSize;
+
+    /** Number of terms placed in the table. */
+    long terms = 0;
+
+    /** Number of terms that were not placed in their first slot. */
+    long collisions = 0;
+
+    /** Sum of the probe lengths of all terms. */
+    long totalProbes = 0;
+
+    /** Longest probe length seen. */
+    int maxProbe = 0;
+
+    /** histogram[i] counts the probe lengths in [2^i, 2^(i+1)). */
+    long[] histogram = new long[32];
+
+
+    public ProbeStats( long tableSize ) {
+        this.tableSize = tableSize;
+    }
+
+
+    /** Records the placement of one term after the given number of probes. */
+    public void record( int probes ) {
+        terms++;
+        totalProbes += probes;
+        if ( probes > 1 ) collisions++;
+        if ( probes > maxProbe ) maxProbe = probes;
+        histogram[31 - Integer.numberOfLeadingZeros( probes )]++;
+    }
+
+
+    public long getCollisions() {
+        return collisions;
+    }
+
+    public double getLoadFactor() {
+        return tableSize == 0 ? 0 : (double) terms / tableSize;
+    }
+
+    public double getMeanProbeLength() {
+        return terms == 0 ? 0 : (double) totalProbes / terms;
+    }
+
+    public int getMaxProbeLength() {
+        return maxProbe;
+    }
+
+
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append( String.format( "%d terms in %d slots (load %.2f), %d collisions, mean probe length %.2f, max %d",
+                                       terms, tableSize, getLoadFactor(), collisions, getMeanProbeLength(), maxProbe ));
+        for ( int i=0; i<histogram.length; i++ ) {
+            if ( histogram[i] > 0 ) {
+                builder.append( String.format( "%n  probes %d-%d: %d", 1 << i, ( 1 << ( i + 1 )) - 1, histogram[i] ));
+            }
+        }
+        return builder.toString();
+    }
+}
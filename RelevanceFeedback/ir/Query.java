@@ -122,7 +122,7 @@ public class Query {
      *  @param docIsRelevant A boolean array representing which query results the user deemed relevant.
      *  @param engine The search engine object
      */
-    public void relevanceFeedback( PostingsList results, boolean[] docIsRelevant, Engine engine ) {
+    public void relevanceFeedback( Postings results, boolean[] docIsRelevant, Engine engine ) {
     	
     	// crearse hasmap de string a double
     	/**
@@ -151,7 +151,7 @@ public class Query {
         int relevant_count = 0;
     	for (int i=0; i<docIsRelevant.length; i++) {
     		if(docIsRelevant[i]) {
-    			String pathname = engine.index.docNames.get(results.get(i).docID);
+    			String pathname = engine.index.getDocuments().name(results.get(i).docID);
                 if(pathname.equals("../../SE/lab1/datasets/davisWiki/Math.f")) {
                     pathname = "../../SE/lab1/datasets/davisWiki/Mathematics.f";
                 }
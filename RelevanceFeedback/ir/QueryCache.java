@@ -0,0 +1,263 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ *   Keeps the results of the queries asked last, up to a budget of bytes,
+ *   so that a repeated query is answered without searching.
+ *
+ *   A query is identified by its terms in order with their weights, and
+ *   by how it is evaluated, see key(). A result is kept whole, in compact
+ *   arrays: the docIDs and scores of its entries in the order of the
+ *   result, and the offsets of the entries that have any. A hit is a new
+ *   PostingsList with the same entries as the result that was cached, so
+ *   it can be read after the index lock is released like any result.
+ *   A pruned RankedPostingsList is given back as one, with the same lower
+ *   bound of its matching documents.
+ *
+ *   A result is only cached when it has at most MAX_RESULT_SIZE entries,
+ *   longer results are searched every time. Queries pruned to their top k
+ *   with MAX_SCORE or BLOCK_MAX_WAND always fit. Copying a ranked result
+ *   sorts it whole, which is bounded by the same size.
+ *
+ *   The results are tied to the generation of the document store they
+ *   were computed at. When the cache is asked at a newer generation, the
+ *   index has changed and all cached results are dropped.
+ *
+ *   The least recently used results are dropped when the budget is
+ *   exceeded. All methods are synchronized, the cache can be shared by
+ *   threads.
+ */
+public class QueryCache {
+
+    /** Results with more entries are not cached. */
+    public static final int MAX_RESULT_SIZE = 10000;
+
+    /** Rough heap cost of a cached result besides its entries and key. */
+    static final int BYTES_PER_RESULT = 96;
+
+    /** Heap cost of an entry: its docID, score and start in the offsets. */
+    static final int BYTES_PER_ENTRY = 16;
+
+    /** Heap cost of an offset. */
+    static final int BYTES_PER_OFFSET = 4;
+
+    /** A cached result. */
+    private static class CachedResult {
+        final int[] docIDs;
+        final double[] scores;
+
+        /** The offsets of entry i are offsets[offsetStarts[i]..offsetStarts[i+1]). */
+        final int[] offsetStarts;
+        final int[] offsets;
+
+        /** The matching documents of a pruned result, -1 if not pruned. */
+        final int matches;
+
+        final long bytes;
+
+        CachedResult( int[] docIDs, double[] scores, int[] offsetStarts, int[] offsets, int matches, long bytes ) {
+            this.docIDs = docIDs;
+            this.scores = scores;
+            this.offsetStarts = offsetStarts;
+            this.offsets = offsets;
+            this.matches = matches;
+            this.bytes = bytes;
+        }
+
+        /** New entries with the cached docIDs, scores and offsets. */
+        PostingsList toPostingsList() {
+            PostingsList list = new PostingsList();
+            for ( int i=0; i<docIDs.length; i++ ) {
+                int count = offsetStarts[i + 1] - offsetStarts[i];
+                PostingsEntry entry;
+                if ( count > 0 ) {
+                    int[] entryOffsets = new int[count];
+                    System.arraycopy( offsets, offsetStarts[i], entryOffsets, 0, count );
+                    entry = new PostingsEntry( docIDs[i], entryOffsets, count );
+                } else {
+                    entry = new PostingsEntry( docIDs[i] );
+                }
+                entry.score = scores[i];
+                list.add( entry );
+            }
+            return list;
+        }
+    }
+
+    /** The cached results, least recently used first. */
+    private final LinkedHashMap<String,CachedResult> results = new LinkedHashMap<String,CachedResult>( 16, 0.75f, true );
+
+    /** The estimated size of the cached results is kept under this many bytes. */
+    private final long budget;
+
+    private long bytes = 0;
+
+    /** The generation of the document store the cached results were computed at. */
+    private long generation = -1;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+
+    public QueryCache( long budget ) {
+        this.budget = budget;
+    }
+
+
+    /**
+     *  The key of a query. The ranking and normalization only matter for
+     *  ranked queries, and are left out of the key of the others.
+     */
+    public static String key( Query query, QueryType queryType, RankingType rankingType, NormalizationType normalizationType,
+                              EvaluationType evaluationType, int topK ) {
+        StringBuilder key = new StringBuilder();
+        key.append( queryType );
+        if ( queryType == QueryType.RANKED_QUERY ) {
+            key.append( ' ' ).append( rankingType ).append( ' ' ).append( normalizationType );
+            if ( rankingType == RankingType.TF_IDF && evaluationType != EvaluationType.TERM_AT_A_TIME ) {
+                key.append( ' ' ).append( evaluationType ).append( ' ' ).append( topK );
+            }
+        }
+        for ( String term : query.getQueryTerms() ) {
+            key.append( '\n' ).append( term );
+            if ( queryType == QueryType.RANKED_QUERY ) {
+                key.append( '\t' ).append( query.query_count.getOrDefault( term, 1.0 ));
+            }
+        }
+        return key.toString();
+    }
+
+
+    /**
+     *  Returns the cached result of a query, or null if it is not cached.
+     *
+     *  @param generation The current generation of the document store.
+     */
+    public synchronized Postings get( String key, long generation ) {
+        invalidate( generation );
+        CachedResult cached = generation == this.generation ? results.get( key ) : null;
+        if ( cached == null ) {
+            misses++;
+            return null;
+        }
+        hits++;
+        PostingsList list = cached.toPostingsList();
+        return cached.matches < 0 ? list : new RankedPostingsList( list, cached.matches );
+    }
+
+
+    /**
+     *  Caches the result of a query computed at the given generation of the
+     *  document store, unless it is null or longer than MAX_RESULT_SIZE.
+     */
+    public synchronized void put( String key, long generation, Postings result ) {
+        if ( result == null || result.size() > MAX_RESULT_SIZE ) {
+            return;
+        }
+        invalidate( generation );
+        if ( generation != this.generation ) {
+            return;
+        }
+        PostingsEntry[] entries;
+        int matches = -1;
+        if ( result instanceof RankedPostingsList ) {
+            if ( ((RankedPostingsList) result).isPruned() ) {
+                matches = ((RankedPostingsList) result).matches();
+            }
+            entries = ((RankedPostingsList) result).top( result.size() );
+        } else {
+            entries = new PostingsEntry[result.size()];
+            for ( int i=0; i<entries.length; i++ ) {
+                entries[i] = result.get( i );
+            }
+        }
+        int[] offsetStarts = new int[entries.length + 1];
+        for ( int i=0; i<entries.length; i++ ) {
+            offsetStarts[i + 1] = offsetStarts[i] + entries[i].offsetCount;
+        }
+        long size = BYTES_PER_RESULT + 2 * key.length() + (long) entries.length * BYTES_PER_ENTRY
+            + (long) offsetStarts[entries.length] * BYTES_PER_OFFSET;
+        if ( size > budget ) {
+            return;
+        }
+        int[] docIDs = new int[entries.length];
+        double[] scores = new double[entries.length];
+        int[] offsets = new int[offsetStarts[entries.length]];
+        for ( int i=0; i<entries.length; i++ ) {
+            docIDs[i] = entries[i].docID;
+            scores[i] = entries[i].score;
+            if ( entries[i].offsetCount > 0 ) {
+                System.arraycopy( entries[i].offsets, 0, offsets, offsetStarts[i], entries[i].offsetCount );
+            }
+        }
+        CachedResult previous = results.put( key, new CachedResult( docIDs, scores, offsetStarts, offsets, matches, size ));
+        if ( previous != null ) {
+            bytes -= previous.bytes;
+        }
+        bytes += size;
+
+        Iterator<Map.Entry<String,CachedResult>> eldest = results.entrySet().iterator();
+        while ( bytes > budget ) {
+            bytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+
+    /**
+     *  Drops all results when the document store has moved to a newer
+     *  generation. A result computed at an older generation than the
+     *  cached ones is not cached at all.
+     */
+    private void invalidate( long generation ) {
+        if ( generation > this.generation ) {
+            if ( !results.isEmpty() ) {
+                invalidations++;
+            }
+            results.clear();
+            bytes = 0;
+            this.generation = generation;
+        }
+    }
+
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+
+    public synchronized String toString() {
+        return String.format( "Query cache: %d results, %d of %d MB, %d hits, %d misses (hit ratio %.2f), %d evictions, %d invalidations",
+                              results.size(), bytes >> 20, budget >> 20, hits, misses, getHitRatio(), evictions, invalidations );
+    }
+}
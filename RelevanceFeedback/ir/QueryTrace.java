@@ -0,0 +1,393 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ *   Records where the time of a query goes.
+ *
+ *   A trace is begun by whoever runs the query, the GUI or BatchSearch,
+ *   and is then the current trace of its thread until it is ended. The
+ *   search code marks the stages it goes through with enter() and exit(),
+ *   and adds to the counters with count(). These are static and do
+ *   nothing unless tracing is enabled and the thread has a current trace,
+ *   so the same code runs untraced during indexing.
+ *
+ *   Stages may nest, e.g. a dictionary probe reads and decodes postings,
+ *   and lazily decoded blocks are decoded while scoring. The time of a
+ *   stage is the time spent in it and not in a stage nested in it, so the
+ *   times of the stages add up to at most the total. The rest, e.g. cache
+ *   lookups and building the query, is reported as other.
+ *
+ *   A trace never changes the outcome of a query: exit() is called from
+ *   finally blocks, so a stage exited out of order is only counted as a
+ *   mismatch, see report().
+ *
+ *   When a trace ends, its times and counters are added to histograms
+ *   kept for the whole run, see report().
+ */
+public class QueryTrace {
+
+    public enum Stage {
+        /** Looking a term up in the dictionary. */
+        DICTIONARY,
+        /** Reading postings from the data file. */
+        POSTINGS_IO,
+        /** Decoding postings read from the data file. */
+        DECODE,
+        /** Expanding a wildcard term with the term dictionary or k-grams. */
+        WILDCARD,
+        /** Intersections, phrases and unions of postings lists. */
+        MERGE,
+        /** Scoring the documents of a ranked query. */
+        SCORE,
+        /** Ordering the results of a ranked query as they are read. */
+        SORT
+    }
+
+    public enum Counter {
+        /** Bytes of postings read from the data file. */
+        POSTINGS_BYTES,
+        /** Postings decoded. */
+        ENTRIES_DECODED,
+        /** Postings or documents given a score. */
+        CANDIDATES_SCORED
+    }
+
+    /** Stages nested deeper than this are not timed. */
+    static final int MAX_DEPTH = 16;
+
+    /** Whether queries are traced at all. */
+    static volatile boolean enabled = false;
+
+    private static final ThreadLocal<QueryTrace> CURRENT = new ThreadLocal<QueryTrace>();
+
+    private static final Histogram TOTAL = new Histogram();
+    private static final Histogram[] STAGES = newHistograms( Stage.values().length );
+    private static final Histogram[] COUNTERS = newHistograms( Counter.values().length );
+    private static final AtomicLong MISMATCHES = new AtomicLong();
+
+    /** The query, as typed. */
+    final String query;
+
+    /** Time spent in every stage, nested stages left out. */
+    final long[] nanos = new long[Stage.values().length];
+
+    /** Number of times every stage was entered. */
+    final int[] calls = new int[Stage.values().length];
+
+    final long[] counts = new long[Counter.values().length];
+
+    /** Wall time of the query, set when the trace ends. */
+    long totalNanos;
+
+    private final long start;
+
+    /** The stages entered and not yet exited, innermost last. */
+    private final Stage[] stack = new Stage[MAX_DEPTH];
+    private int depth = 0;
+
+    /** When the innermost stage was entered or last resumed. */
+    private long mark;
+
+    /** Number of stages exited out of order. */
+    int mismatches = 0;
+
+
+    private QueryTrace( String query ) {
+        this.query = query;
+        start = System.nanoTime();
+    }
+
+
+    private static Histogram[] newHistograms( int n ) {
+        Histogram[] histograms = new Histogram[n];
+        for ( int i=0; i<n; i++ ) {
+            histograms[i] = new Histogram();
+        }
+        return histograms;
+    }
+
+
+    /**
+     *  Begins the trace of a query as the current trace of this thread, or
+     *  returns null if tracing is disabled.
+     */
+    public static QueryTrace begin( String query ) {
+        if ( !enabled ) {
+            return null;
+        }
+        QueryTrace trace = new QueryTrace( query );
+        CURRENT.set( trace );
+        return trace;
+    }
+
+
+    /** The current trace of this thread, or null. */
+    public static QueryTrace current() {
+        return enabled ? CURRENT.get() : null;
+    }
+
+
+    /** Marks that the current thread enters a stage. */
+    public static void enter( Stage stage ) {
+        QueryTrace trace = current();
+        if ( trace != null ) {
+            trace.push( stage );
+        }
+    }
+
+
+    /**
+     *  Marks that the current thread leaves a stage it entered. The stage
+     *  should be the innermost one entered and not yet exited. If stages
+     *  entered in it are still open, they are left with it; if it is not
+     *  open at all, the call is ignored. Both count as a mismatch.
+     */
+    public static void exit( Stage stage ) {
+        QueryTrace trace = current();
+        if ( trace != null ) {
+            trace.pop( stage );
+        }
+    }
+
+
+    /** Adds n to a counter of the current trace of this thread. */
+    public static void count( Counter counter, long n ) {
+        QueryTrace trace = current();
+        if ( trace != null ) {
+            trace.counts[counter.ordinal()] += n;
+        }
+    }
+
+
+    private void push( Stage stage ) {
+        long now = System.nanoTime();
+        if ( depth > 0 && depth <= MAX_DEPTH ) {
+            nanos[stack[depth - 1].ordinal()] += now - mark;
+        }
+        if ( depth < MAX_DEPTH ) {
+            stack[depth] = stage;
+            calls[stage.ordinal()]++;
+        }
+        depth++;
+        mark = now;
+    }
+
+
+    /**
+     *  Leaves the given stage and the stages still open in it, or the
+     *  innermost stage if null.
+     */
+    private void pop( Stage stage ) {
+        if ( stage != null && depth <= MAX_DEPTH && ( depth == 0 || stack[depth - 1] != stage )) {
+            mismatches++;
+            int open = depth - 1;
+            while ( open >= 0 && stack[open] != stage ) {
+                open--;
+            }
+            if ( open < 0 ) {
+                return;
+            }
+            while ( depth > open + 1 ) {
+                pop( null );
+            }
+        }
+        if ( depth == 0 ) {
+            return;
+        }
+        long now = System.nanoTime();
+        if ( depth <= MAX_DEPTH ) {
+            nanos[stack[depth - 1].ordinal()] += now - mark;
+        }
+        depth--;
+        mark = now;
+    }
+
+
+    /**
+     *  Ends this trace, which is no longer the current trace of its thread,
+     *  and adds it to the histograms.
+     */
+    public void end() {
+        while ( depth > 0 ) {
+            pop( null );
+        }
+        totalNanos = System.nanoTime() - start;
+        if ( CURRENT.get() == this ) {
+            CURRENT.remove();
+        }
+        TOTAL.record( totalNanos );
+        for ( int s=0; s<nanos.length; s++ ) {
+            if ( calls[s] > 0 ) {
+                STAGES[s].record( nanos[s] );
+            }
+        }
+        for ( int c=0; c<counts.length; c++ ) {
+            COUNTERS[c].record( counts[c] );
+        }
+        MISMATCHES.addAndGet( mismatches );
+    }
+
+
+    /** The time of a stage in this trace, in nanoseconds. */
+    public long getNanos( Stage stage ) {
+        return nanos[stage.ordinal()];
+    }
+
+
+    public long getCount( Counter counter ) {
+        return counts[counter.ordinal()];
+    }
+
+
+    /** The trace as one line: the total time, then every stage and counter. */
+    public String toString() {
+        StringBuilder line = new StringBuilder( String.format( "Trace of \"%s\": total %.3f ms", query, totalNanos / 1e6 ));
+        long traced = 0;
+        for ( Stage stage : Stage.values() ) {
+            int s = stage.ordinal();
+            if ( calls[s] > 0 ) {
+                line.append( String.format( ", %s %.3f ms (%d)", stage.toString().toLowerCase(), nanos[s] / 1e6, calls[s] ));
+                traced += nanos[s];
+            }
+        }
+        line.append( String.format( ", other %.3f ms", Math.max( 0, totalNanos - traced ) / 1e6 ));
+        for ( Counter counter : Counter.values() ) {
+            line.append( String.format( ", %s %d", counter.toString().toLowerCase(), counts[counter.ordinal()] ));
+        }
+        return line.toString();
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /** The histogram of the total time of the traced queries, in nanoseconds. */
+    public static Histogram totalHistogram() {
+        return TOTAL;
+    }
+
+
+    /** The histogram of the time of a stage, over the queries that entered it. */
+    public static Histogram histogram( Stage stage ) {
+        return STAGES[stage.ordinal()];
+    }
+
+
+    /** The histogram of a counter over the traced queries. */
+    public static Histogram histogram( Counter counter ) {
+        return COUNTERS[counter.ordinal()];
+    }
+
+
+    /** Empties all histograms. */
+    public static void reset() {
+        TOTAL.reset();
+        for ( Histogram histogram : STAGES ) {
+            histogram.reset();
+        }
+        for ( Histogram histogram : COUNTERS ) {
+            histogram.reset();
+        }
+        MISMATCHES.set( 0 );
+    }
+
+
+    /** The histograms as a table, times in milliseconds. */
+    public static String report() {
+        StringBuilder report = new StringBuilder( String.format( "Query traces: %d queries%n", TOTAL.count() ));
+        report.append( String.format( "%-20s %8s %12s %12s %12s %12s %12s%n", "", "queries", "mean", "p50", "p95", "p99", "max" ));
+        report.append( TOTAL.toString( "total ms", 1e6 ));
+        for ( Stage stage : Stage.values() ) {
+            report.append( STAGES[stage.ordinal()].toString( stage.toString().toLowerCase() + " ms", 1e6 ));
+        }
+        for ( Counter counter : Counter.values() ) {
+            report.append( COUNTERS[counter.ordinal()].toString( counter.toString().toLowerCase(), 1 ));
+        }
+        if ( MISMATCHES.get() > 0 ) {
+            report.append( String.format( "%d stages exited out of order%n", MISMATCHES.get() ));
+        }
+        return report.toString();
+    }
+
+
+    /**
+     *   A histogram of non-negative longs in buckets of powers of two:
+     *   bucket b holds the values v with 2^(b-1) <= v < 2^b, and bucket 0
+     *   the zeros. Percentiles are given as the upper end of their bucket,
+     *   so they are at most twice too high. Values can be recorded by
+     *   several threads at once.
+     */
+    public static class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray( 65 );
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+
+        public void record( long value ) {
+            value = Math.max( 0, value );
+            buckets.incrementAndGet( 64 - Long.numberOfLeadingZeros( value ));
+            count.incrementAndGet();
+            sum.addAndGet( value );
+            max.accumulateAndGet( value, Math::max );
+        }
+
+
+        public long count() {
+            return count.get();
+        }
+
+
+        public double mean() {
+            long n = count.get();
+            return n == 0 ? 0.0 : (double) sum.get() / n;
+        }
+
+
+        public long max() {
+            return max.get();
+        }
+
+
+        /** An upper bound of the value at the given percentile, 0 < p <= 1. */
+        public long percentile( double p ) {
+            long rank = (long) Math.ceil( p * count.get() );
+            long seen = 0;
+            for ( int b=0; b<buckets.length(); b++ ) {
+                seen += buckets.get( b );
+                if ( seen >= rank && seen > 0 ) {
+                    return b == 0 ? 0 : Math.min( max.get(), b == 64 ? Long.MAX_VALUE : ( 1L << b ) - 1 );
+                }
+            }
+            return max.get();
+        }
+
+
+        void reset() {
+            for ( int b=0; b<buckets.length(); b++ ) {
+                buckets.set( b, 0 );
+            }
+            count.set( 0 );
+            sum.set( 0 );
+            max.set( 0 );
+        }
+
+
+        /** One line of report(), the values divided by unit. */
+        String toString( String name, double unit ) {
+            return String.format( "%-20s %8d %12.3f %12.3f %12.3f %12.3f %12.3f%n", name, count(), mean() / unit,
+                                  percentile( 0.50 ) / unit, percentile( 0.95 ) / unit, percentile( 0.99 ) / unit, max() / unit );
+        }
+    }
+}
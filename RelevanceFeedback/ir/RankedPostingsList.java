@@ -0,0 +1,211 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.util.BitSet;
+
+
+/**
+ *   The result of a ranked query, ordered by decreasing score.
+ *
+ *   Sorting all matching documents is wasted work when only the first page
+ *   is looked at. Instead, the list keeps the scored entries as they are
+ *   and sorts a prefix that grows on demand: asking for the ith result
+ *   selects the best entries not yet taken with a min-heap bounded to the
+ *   number of entries missing, and appends them to the prefix in order.
+ *   The prefix at least doubles every time it grows, so reading the whole
+ *   list costs about as much as one sort.
+ *
+ *   Entries with the same score keep the order they were given in, as
+ *   with the stable sort of PostingsList.sortPostings(). The list is not
+ *   in docID order, so advance() and the block methods of Postings do not
+ *   apply to it.
+ *
+ *   A pruned evaluation (MAX_SCORE or BLOCK_MAX_WAND) only keeps the best
+ *   documents of a query, so its result is shorter than the number of
+ *   matching documents. It then also holds a lower bound of that number,
+ *   see matches().
+ */
+public class RankedPostingsList implements Postings {
+
+    /** The scored entries, in the order they were given. */
+    private final PostingsEntry[] entries;
+
+    /** order[0..sortedCount) are the indices of the best entries, best first. */
+    private final int[] order;
+    private int sortedCount = 0;
+
+    /** The entries already in the sorted prefix. */
+    private final BitSet taken;
+
+    /** Bounded min-heap of entry indices, the worst kept entry at the root. */
+    private int[] heap = new int[0];
+    private int heapSize = 0;
+
+    /** Whether only the best matching documents are kept. */
+    private final boolean pruned;
+
+    /** At least this many documents match the query. */
+    private final int matches;
+
+
+    /**
+     *  Ranks the entries of the given list by their score.
+     */
+    public RankedPostingsList( PostingsList scored ) {
+        entries = scored.list.toArray( new PostingsEntry[0] );
+        order = new int[entries.length];
+        taken = new BitSet( entries.length );
+        pruned = false;
+        matches = entries.length;
+    }
+
+
+    /**
+     *  Ranks the best entries of a query that at least the given number of
+     *  documents match.
+     */
+    public RankedPostingsList( PostingsList best, int matches ) {
+        entries = best.list.toArray( new PostingsEntry[0] );
+        order = new int[entries.length];
+        taken = new BitSet( entries.length );
+        pruned = true;
+        this.matches = Math.max( matches, entries.length );
+    }
+
+
+    public int size() {
+        return entries.length;
+    }
+
+
+    /** Whether the list only holds the best documents of its query. */
+    public boolean isPruned() {
+        return pruned;
+    }
+
+
+    /**
+     *  The number of documents matching the query, or a lower bound of it
+     *  if the list is pruned.
+     */
+    public int matches() {
+        return matches;
+    }
+
+
+    /** Returns the ith best entry. */
+    public PostingsEntry get( int i ) {
+        if ( i >= sortedCount ) {
+            sortPrefix( i + 1 );
+        }
+        return entries[order[i]];
+    }
+
+
+    /** Returns the k best entries, best first. */
+    public PostingsEntry[] top( int k ) {
+        k = Math.min( k, entries.length );
+        sortPrefix( k );
+        PostingsEntry[] best = new PostingsEntry[k];
+        for ( int i=0; i<k; i++ ) {
+            best[i] = entries[order[i]];
+        }
+        return best;
+    }
+
+
+    /**
+     *  Extends the sorted prefix to at least k entries.
+     */
+    private void sortPrefix( int k ) {
+        if ( k <= sortedCount ) {
+            return;
+        }
+        QueryTrace.enter( QueryTrace.Stage.SORT );
+        try {
+            selectBest( Math.min( entries.length, Math.max( k, 2 * sortedCount )));
+        } finally {
+            QueryTrace.exit( QueryTrace.Stage.SORT );
+        }
+    }
+
+
+    /**
+     *  Appends the best entries not yet taken to the sorted prefix, until
+     *  it has target entries.
+     */
+    private void selectBest( int target ) {
+        int missing = target - sortedCount;
+
+        if ( heap.length < missing ) {
+            heap = new int[missing];
+        }
+        heapSize = 0;
+        for ( int i=taken.nextClearBit( 0 ); i<entries.length; i=taken.nextClearBit( i + 1 )) {
+            if ( heapSize < missing ) {
+                heap[heapSize++] = i;
+                siftUp( heapSize - 1 );
+            } else if ( worse( heap[0], i )) {
+                heap[0] = i;
+                siftDown( 0 );
+            }
+        }
+
+        // Popping the heap gives the entries worst first
+        for ( int j=target-1; j>=sortedCount; j-- ) {
+            int worst = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown( 0 );
+            order[j] = worst;
+            taken.set( worst );
+        }
+        sortedCount = target;
+    }
+
+
+    /** Tells whether entry a ranks below entry b. */
+    private boolean worse( int a, int b ) {
+        int c = Double.compare( entries[a].score, entries[b].score );
+        return c != 0 ? c < 0 : a > b;
+    }
+
+
+    private void siftUp( int i ) {
+        int item = heap[i];
+        while ( i > 0 ) {
+            int parent = ( i - 1 ) >>> 1;
+            if ( !worse( item, heap[parent] )) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = item;
+    }
+
+
+    private void siftDown( int i ) {
+        int item = heap[i];
+        while ( true ) {
+            int child = 2 * i + 1;
+            if ( child >= heapSize ) {
+                break;
+            }
+            if ( child + 1 < heapSize && worse( heap[child + 1], heap[child] )) {
+                child++;
+            }
+            if ( !worse( heap[child], item )) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = item;
+    }
+}
@@ -10,30 +10,59 @@ import java.util.stream.Collectors;
 
 public class RankedSearch {
 
-  public static PostingsList search(ArrayList<PostingsList> postingsLists, Index index, RankingType rankingType, NormalizationType normalizationType, HITSRanker hitsRanker) {
+  /** Score accumulators reused from query to query, one of each per thread. */
+  private static final ThreadLocal<ScoreAccumulator> TF_IDF_SCORES = ThreadLocal.withInitial(ScoreAccumulator::new);
+  private static final ThreadLocal<ScoreAccumulator> PAGERANK_SCORES = ThreadLocal.withInitial(ScoreAccumulator::new);
+
+  /**
+   *  Scores the documents and returns them best first. The result is a
+   *  RankedPostingsList, which only sorts as many entries as are read.
+   *
+   *  weights[i] is the weight of the term of postingsLists.get(i) in the
+   *  query. The postings lists are only read, all the scores of a query
+   *  are kept in the result or in accumulators of the calling thread, so
+   *  several threads can search at the same time.
+   */
+  public static Postings search(ArrayList<Postings> postingsLists, double[] weights, Index index, RankingType rankingType, NormalizationType normalizationType, HITSRanker hitsRanker) {
+	  return search(postingsLists, weights, index, rankingType, normalizationType, hitsRanker, EvaluationType.TERM_AT_A_TIME, 0);
+  }
+  
+  /**
+   *  Same as above, but a TF_IDF query evaluated with MAX_SCORE or
+   *  BLOCK_MAX_WAND only returns its topK best documents, in a result
+   *  that tells it is pruned and how many documents match at least.
+   */
+  public static Postings search(ArrayList<Postings> postingsLists, double[] weights, Index index, RankingType rankingType, NormalizationType normalizationType, HITSRanker hitsRanker, EvaluationType evaluationType, int topK) {
 	  
 	  double WEIGHT = 0.5;
 	  
+	  if (rankingType == RankingType.TF_IDF && evaluationType != EvaluationType.TERM_AT_A_TIME && MaxScoreEvaluator.applies(weights)) {
+		  MaxScoreEvaluator evaluator = evaluationType == EvaluationType.BLOCK_MAX_WAND
+				  ? new BlockMaxWandEvaluator(index, normalizationType, topK)
+				  : new MaxScoreEvaluator(index, normalizationType, topK);
+		  PostingsList result = evaluator.search(postingsLists, weights);
+		  QueryTrace.count(QueryTrace.Counter.CANDIDATES_SCORED, evaluator.scored);
+		  return new RankedPostingsList(result, Math.max(result.size(), evaluator.matchesAtLeast()));
+	  }
+	  
 	  switch (rankingType) {
-      case TF_IDF: return tfIdfRanking(postingsLists, index, normalizationType);
-      case PAGERANK: return pageRankRanking(postingsLists, index);
+      case TF_IDF: return new RankedPostingsList(tfIdfScores(postingsLists, weights, index, normalizationType).toPostingsList());
+      case PAGERANK: return new RankedPostingsList(pageRankScores(postingsLists, index).toPostingsList());
       case COMBINATION: {
-    	  System.err.println("Combination");
-    	  PostingsList pr = pageRankRanking(postingsLists, index);
-    	  PostingsList tfidf = tfIdfRanking(postingsLists, index, normalizationType);
-    	  
-    	  normalizeScores(pr);
-    	  normalizeScores(tfidf);
+    	  // Both kinds of scores are normalized to sum up to one
+    	  ScoreAccumulator pr = pageRankScores(postingsLists, index);
+    	  ScoreAccumulator tfidf = tfIdfScores(postingsLists, weights, index, normalizationType);
+    	  double prSum = pr.sum();
+    	  double tfidfSum = tfidf.sum();
     	  
-    	  for(int i=0; i<pr.size(); i++) {
-    		  pr.get(i).setScore(pr.get(i).score * WEIGHT + tfidf.get(i).score * (1-WEIGHT));
+    	  PostingsList combined = new PostingsList();
+    	  for(int docID = pr.nextDocument(0); docID >= 0; docID = pr.nextDocument(docID + 1)) {
+    		  combined.add(new PostingsEntry(docID, pr.get(docID) / prSum * WEIGHT + tfidf.get(docID) / tfidfSum * (1-WEIGHT)));
     	  }
     	  
-    	  pr.sortPostings();
-    	  
-    	  return pr;
+    	  return new RankedPostingsList(combined);
       }
-      case HITS: return hitsRanking(postingsLists, index, hitsRanker);
+      case HITS: return new RankedPostingsList(hitsRanking(postingsLists, index, hitsRanker));
       default:
         break;
     }
@@ -42,71 +71,60 @@ public class RankedSearch {
     
   }
   
-  private static PostingsList hitsRanking(ArrayList<PostingsList> postingsLists, Index index, HITSRanker hitsRanker) {
+  private static PostingsList hitsRanking(ArrayList<Postings> postingsLists, Index index, HITSRanker hitsRanker) {
 	  
 	  int docID;
 	  PostingsEntry postingsEntry;
 	  PostingsList answer = new PostingsList();
 	  
-	  for(PostingsList postingsList : postingsLists) {
+	  for(Postings postingsList : postingsLists) {
 		  answer = postingsUnion(answer, postingsList);
 	  }
 	  
-	  PostingsList hitsPostings = hitsRanker.rank(answer);
-	  
-	  hitsPostings.sortPostings();
-	  
-	  return hitsPostings;
+	  return hitsRanker.rank(answer);
   }
   
-  private static void normalizeScores(PostingsList postingsList) {
+  /**
+   *  Sums the PageRank of every document once for every term it contains.
+   */
+  private static ScoreAccumulator pageRankScores(ArrayList<Postings> postingsLists, Index index) {
 	  
-	  double sum = 0;
-	  for(int i=0; i<postingsList.size(); i++) {
-		  sum += postingsList.get(i).score;
-	  }
-	  for(int i=0; i<postingsList.size(); i++) {
-		  postingsList.get(i).setScore(postingsList.get(i).score / sum);
-	  }
+	  DocumentStore documents = index.getDocuments();
+	  ScoreAccumulator scores = PAGERANK_SCORES.get();
+	  scores.reset(documents.limit());
 	  
-  }
-  
-  private static PostingsList pageRankRanking(ArrayList<PostingsList> postingsLists, Index index) {
-	  
-	  int docID;
-	  PostingsEntry postingsEntry;
-	  PostingsList answer = new PostingsList();
-	  
-	  for(PostingsList postingsList : postingsLists) {
+	  for(Postings postingsList : postingsLists) {
+		  if(postingsList == null) {
+			  continue;
+		  }
 		  for(int i=0; i<postingsList.size(); i++) {
-			  //System.err.println(postingsList.get(i).docID);
-			  try {
-				  postingsList.get(i).setScore(index.docPageRank.get(postingsList.get(i).docID));
-			  } catch (Exception e) {
-				  
-			  }
-			  
+			  int docID = postingsList.get(i).docID;
+			  scores.add(docID, documents.pageRank(docID));
 		  }
-		  answer = postingsUnion(answer, postingsList);
+		  QueryTrace.count(QueryTrace.Counter.CANDIDATES_SCORED, postingsList.size());
 	  }
 	  
-	  answer.sortPostings();
-	  
-	  return answer;
+	  return scores;
   }
   
-  private static PostingsList tfIdfRanking(ArrayList<PostingsList> postingsLists, Index index, NormalizationType normalizationType) {
+  /**
+   *  Scores the documents term by term, adding the tf-idf score of every
+   *  posting to an accumulator indexed by docID.
+   */
+  private static ScoreAccumulator tfIdfScores(ArrayList<Postings> postingsLists, double[] weights, Index index, NormalizationType normalizationType) {
   	
-  	int N = index.docLengths.size();
+  	DocumentStore documents = index.getDocuments();
+  	int N = documents.size();
   	
-  	PostingsList answer = new PostingsList();
+  	ScoreAccumulator scores = TF_IDF_SCORES.get();
+  	scores.reset(documents.limit());
   	PostingsEntry postingsEntry;
-  	int docID;
   	int tf;
   	double idf;
   	
-  	for(PostingsList postingsList : postingsLists) {
-
+  	for(int t=0; t<postingsLists.size(); t++) {
+  		
+  		Postings postingsList = postingsLists.get(t);
 		if(postingsList == null) {
 			continue;
 		}
@@ -114,35 +132,39 @@ public class RankedSearch {
       	idf = Math.log((double)N / postingsList.size());
       	
       	for(int i=0; i<postingsList.size(); i++) {
-      		docID = postingsList.get(i).docID;
       		postingsEntry = postingsList.get(i);
-      		tf = postingsEntry.offsetList.size();
-      		//postingsEntry.setScore((tf * idf) / index.docLengths.get(docID));
-      		postingsEntry.setScore(postingsList.weight * (tf * idf) / docLength(index, docID, normalizationType));
+      		tf = postingsEntry.tf();
+      		scores.add(postingsEntry.docID, weights[t] * (tf * idf) / documents.length(postingsEntry.docID, normalizationType));
       	}
-      	
-      	answer = postingsUnion(answer, postingsList);
+      	QueryTrace.count(QueryTrace.Counter.CANDIDATES_SCORED, postingsList.size());
 
   	}
   	
-  	answer.sortPostings();
-  	
-  	return answer;
+  	return scores;
+  }
+  
+  /**
+   *  The tf of an entry divided by the length of its document, or infinity
+   *  when the length is not known.
+   */
+  static double normalizedTf(Index index, PostingsEntry entry, NormalizationType nt) {
+	  return normalizedTf(index, entry.docID, entry.tf(), nt);
   }
   
-  private static double docLength(Index index, int docID, NormalizationType nt) {
-	  switch(nt) {
-	  case NUMBER_OF_WORDS:
-		  return index.docLengths.get(docID);
-	  case EUCLIDEAN:
-		  return index.docLengthsEuclidean.get(docID);
-	  default:
-		  System.err.println("docLength error");
-		  return 0;
+  /** The same, for a posting that is not in a PostingsEntry. */
+  static double normalizedTf(Index index, int docID, int tf, NormalizationType nt) {
+	  double length = index.getDocuments().length(docID, nt);
+	  if (length <= 0) {
+		  return Double.POSITIVE_INFINITY;
 	  }
+	  return tf / length;
   }
   
-  private static PostingsList postingsUnion(PostingsList p1, PostingsList p2) {
+  /**
+   *  The union of the documents of two lists, in new entries that can be
+   *  scored without changing the entries of the index.
+   */
+  private static PostingsList postingsUnion(PostingsList p1, Postings p2) {
   	
   	PostingsList answer = new PostingsList();
   	
@@ -163,22 +185,24 @@ public class RankedSearch {
   			p1_idx++;
   			p2_idx++;
   		} else if(pe1.docID < pe2.docID) {
-  			answer.add(pe1);
+  			answer.add(new PostingsEntry(pe1.docID, pe1.score));
   			
   			p1_idx++;
   		} else {
-  			answer.add(pe2);
+  			answer.add(new PostingsEntry(pe2.docID, pe2.score));
   			
   			p2_idx++;
   		}
   	}
   	
   	while(p1_idx < p1.size()) {
-  		answer.add(p1.get(p1_idx++));
+  		pe1 = p1.get(p1_idx++);
+  		answer.add(new PostingsEntry(pe1.docID, pe1.score));
   	}
   	
   	while(p2_idx < p2.size()) {
-  		answer.add(p2.get(p2_idx++));
+  		pe2 = p2.get(p2_idx++);
+  		answer.add(new PostingsEntry(pe2.docID, pe2.score));
   	}
   	
   	return answer;
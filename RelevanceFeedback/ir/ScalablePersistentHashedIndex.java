@@ -9,8 +9,6 @@ package ir;
 
 import java.io.*;
 import java.util.*;
-import java.nio.charset.*;
-import java.nio.ByteBuffer;
 
 
 /*
@@ -20,31 +18,46 @@ import java.nio.ByteBuffer;
  *   stored in RandomAccessFiles that permit fast (almost constant-time)
  *   disk seeks. 
  *
- *   When words are read and indexed, they are first put in an ordinary,
- *   main-memory HashMap. When all words are read, the index is committed
- *   to disk.
+ *   When words are read, they are first put in a main-memory TreeMap. Every
+ *   time the estimated size of the TreeMap reaches the buffer budget it is
+ *   written to disk as a sorted run and emptied. When all words are read, the runs are merged
+ *   into the final data file, and the dictionary is filled in with the
+ *   positions the merge wrote every word at.
  */
 public class ScalablePersistentHashedIndex extends PersistentHashedIndex {
 	
 	private TreeMap<String,PostingsList> index = new TreeMap<String,PostingsList>();
 	
-	public static final int LIMIT_TOKENS = 100000; //300000;
+	/*
+	 *  Rough heap cost of the buffered postings, used to estimate how much
+	 *  memory the TreeMap holds: a new term (TreeMap node, String and empty
+	 *  PostingsList), a new PostingsEntry with its first offsets array and
+	 *  list slot, and one more offset.
+	 */
+	static final int BYTES_PER_TERM = 160;
+	static final int BYTES_PER_ENTRY = 72;
+	static final int BYTES_PER_OFFSET = 4;
 	
-	public static int tokens_inserted = 0;
-	
-	public static final long TABLESIZE = 3499999L;
-	
-	public int first_insert = 0;
+	/**
+	 *  Rough heap cost of a word kept by the merge for the terms file,
+	 *  besides its chars: the String, its list slot and its data pointer.
+	 */
+	static final int BYTES_PER_MERGED_TERM = 56;
 	
-	public int dataFileCount = 0;
+	/** The TreeMap is written as a run when its estimated size reaches this many bytes. */
+	long bufferBudget = Runtime.getRuntime().maxMemory() / 4;
 	
-	public RandomAccessFile dataFile;
+	/** Estimated size of the TreeMap in bytes. */
+	long bufferedBytes = 0;
 	
-	public Merger merge_thread;
+	/** Told about every run written and merged, and about the dictionary. */
+	IndexingMetrics metrics = new IndexingMetrics();
 	
-	public File toDelete, toDeleteMerge;
+	/** The sorted runs written so far, in the order they were written. */
+	ArrayList<File> runFiles = new ArrayList<File>();
 	
-	RandomAccessFile finalDataFile;
+	/** Position in the data file of every word the merge wrote, in the order they were written. */
+	private long[] wordPtrs;
 	
 	
 	/**
@@ -55,271 +68,137 @@ public class ScalablePersistentHashedIndex extends PersistentHashedIndex {
     	PostingsList list = index.get(token);
     	if(list == null) {
     		list = new PostingsList();
+    		index.put(token, list);
+    		bufferedBytes += BYTES_PER_TERM + 2 * token.length();
     	}
+    	int entries = list.size();
     	list.add(docID, offset);
-    	index.put(token, list);
+    	bufferedBytes += list.size() > entries ? BYTES_PER_ENTRY : BYTES_PER_OFFSET;
     	
-    	tokens_inserted = index.size();
-    	
-    	if(tokens_inserted == LIMIT_TOKENS) {
-    		
-    		System.err.println("Alcanzado limite de tokens.");
-    		
-    		if(first_insert == 0) {
-        		System.err.println("This is my first insert");
-        		first_insert++;
-        		try {
-        			dataFile = new RandomAccessFile( "./index/data_merged" + Integer.toString(dataFileCount), "rw" );
-            		writeIndex(dataFile);
-            		dataFile.close();
-        		} catch (Exception e) {
-        			e.printStackTrace();
-        		}
-        		
-        		dataFileCount--;
-        		
-        		
-        	} else if (first_insert == 1){
-        		first_insert++;
-        		System.err.println("This is my second insert");
-        		
-        		try {
-        			dataFile = new RandomAccessFile( "./index/data" + Integer.toString(dataFileCount), "rw" );
-            		writeIndex(dataFile);
-            		dataFile.close();
-        		} catch (Exception e) {
-        			e.printStackTrace();
-        		}
-        		
-        		merge_thread = new Merger(dataFileCount);
-        		merge_thread.start();
-        		
-        	} else {
-        		
-        		System.err.println("This is the insert numero: " + Integer.toString(first_insert++));
-        		try {
-        			dataFile = new RandomAccessFile( "./index/data" + Integer.toString(dataFileCount), "rw" );
-        			System.err.println("Created data" + Integer.toString(dataFileCount));
-            		writeIndex(dataFile);
-            		//dataFile.close();
-            		
-            		
-            		
-            		toDelete = new File("./index/data" + Integer.toString(dataFileCount-2));
-            		toDeleteMerge = new File("./index/data_merged" + Integer.toString(dataFileCount-2));
-            		
-            		if (toDelete.delete()) { 
-            		      System.out.println("Deleted the file: " + toDelete.getName());
-            		} else {
-            		      System.out.println("Failed to delete the file.");
-            		}
-            		
-            		if (toDeleteMerge.delete()) {
-            			System.out.println("Deleted the merge file: " + toDeleteMerge.getName());
-            		} else {
-            			System.out.println("Failed to delete the merge file.");
-            		}
-            		
-            		
-            		
-        		} catch (Exception e) {
-        			e.printStackTrace();
-        		}
-        		
-        		
-        		try {
-        			merge_thread.join();
-        		} catch (Exception e) {
-        			e.printStackTrace();
-        		}
-        		merge_thread = new Merger(dataFileCount);
-        		merge_thread.start();
-        	}
-    		
-    		dataFileCount++;
-    		tokens_inserted = 0;
-    		free = 0L;
-    		try {
-    			writeDocInfo();
-    		} catch (Exception e) {
-    			System.err.println("Failed writedocinfo.");
-    			e.printStackTrace();
-    		}
-    		
-    		index.clear();
-    		
+    	if(bufferedBytes >= bufferBudget) {
+    		writeRun();
     	}
     }
     
     /**
-     *  Writes data to the data file at a specified place.
-     *
-     *  @return The number of bytes written.
-     */ 
-    int writeData( String dataString, long ptr, RandomAccessFile dataFile ) {
-        try {
-            dataFile.seek( ptr );
-            
-            String finalString = String.format("%09d", dataString.getBytes().length) + dataString;
-            
-            byte[] data = finalString.getBytes();
-            
-            dataFile.write( data );
-            return data.length;
-        } catch ( IOException e ) {
-            e.printStackTrace();
-            return -1;
-        }
+     *  Sets the memory budget of the TreeMap, in bytes.
+     */
+    public void setBufferBudget( long bytes ) {
+    	bufferBudget = bytes;
     }
     
     /**
-     *  Write the index to files.
+     *  Records the runs written and merged in the given metrics, instead
+     *  of metrics of its own.
      */
-    public void writeIndex(RandomAccessFile dataFile) {
-        String token;
-        PostingsList postingsList;
-        Entry entry;
-            
-        for (HashMap.Entry<String, PostingsList> item : index.entrySet()) {
-                
-            entry = new Entry(item.getKey(), item.getValue());
-                
-            free += Long.valueOf(writeData(entry.serializeEntry(), free, dataFile));
-        }
+    public void setMetrics( IndexingMetrics metrics ) {
+    	this.metrics = metrics;
     }
     
-    String readFinalData( long ptr, int size, RandomAccessFile dataFile ) {
-        try {
-            dataFile.seek( ptr );
-            byte[] data = new byte[size];
-            dataFile.readFully( data );
-            return new String(data);
-        } catch ( IOException e ) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-  
-    public void createDictionary() {
-    	System.err.println("Creating dictionary file...");
-    	try {
-    		finalDataFile = new RandomAccessFile( "./index/data", "rw" );
-    	} catch (Exception e) {
-    		e.printStackTrace();
-    	}
-    	long ptr = 0L;
-    	int sizeint = 0;
-    	Entry entry;
-    	String serializedEntry;
-    	long hash;
-    	HashSet<Long> used_hashes = new HashSet<Long>();
-    	
-    	try {
-    		while(true) {
-    			
-    			finalDataFile.seek(ptr);
-    			sizeint = Integer.parseInt(readFinalData(ptr, 9, finalDataFile));
-    	
-    			serializedEntry = readFinalData(ptr+9, sizeint, finalDataFile);
-    			
-    			entry = new Entry(serializedEntry);
-    			
-    			hash = Math.abs(entry.word.hashCode()%TABLESIZE);
-                hash*=8;
-                
-                while(used_hashes.contains(hash)) {
-                	hash+=8;
-                }
-                
-                used_hashes.add(hash);
-                
-                writeDictionary(hash, ptr);
-    			
-    			ptr += 9 + sizeint;
+    /**
+     *  Writes the terms in main memory to a new sorted run, and empties the TreeMap.
+     */
+    void writeRun() {
+    	File run = new File(INDEXDIR + "/run" + runFiles.size());
+    	long start = System.nanoTime();
+    	
+    	try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+    		out.writeInt(PostingsCodec.MAGIC);
+    		out.writeInt(PostingsCodec.VERSION);
+    		for (Map.Entry<String, PostingsList> item : index.entrySet()) {
+    			// Not all document lengths are known yet, the bounds are set by the final merge
+    			out.write(PostingsCodec.encode(item.getKey(), item.getValue(), null));
     		}
-    	} catch(Exception e) {
-    		System.err.println("Dictionary done!");
+    	} catch (IOException e) {
+    		e.printStackTrace();
     	}
     	
+    	metrics.recordFlush(bufferedBytes, run.length(), System.nanoTime() - start);
+    	runFiles.add(run);
+    	bufferedBytes = 0;
+    	index.clear();
     }
     
-    public void renameLastMerge(int dataFileCount) {
-    	
-    	File toDelete = new File("./index/data");
-		
-		if (toDelete.delete()) { 
-		      System.out.println("Deleted the file: " + toDelete.getName());
-		} else {
-		      System.out.println("Failed to delete the file.");
-		}
-    	
-    	File data_merged = new File("index/data_merged" + Integer.toString(dataFileCount));
-    	File data = new File("index/data");
+    /**
+     *  Merges the runs into the data file and fills in the dictionary. The
+     *  merge reports every word it writes with the position of its record,
+     *  and both are kept, so the table is sized from the number of distinct
+     *  terms once the merge is done, and filled without reading the data
+     *  file. The words are needed anyway to write the terms file; their
+     *  estimated size is counted as the buffer of the merge in the metrics.
+     *
+     *  The table is filled through a writable mapping of the dictionary
+     *  file, where a free slot has a null data pointer, so it takes no heap
+     *  and is written back to the file in one go.
+     */
+    void mergeRuns() throws IOException {
+    	long start = System.nanoTime();
+    	long bytesIn = 0;
+    	for (File run : runFiles) {
+    		bytesIn += run.length();
+    	}
+    	ArrayList<String> sortedWords = new ArrayList<String>();
+    	wordPtrs = new long[1024];
+    	bufferedBytes = 0;
     	
-    	if(data_merged.renameTo(data)) {
-    		System.err.println("Rename success");
-    	} else {
-    		System.err.println("Rename error");
+    	new Merger(new File(INDEXDIR), this).merge(runFiles, new File(INDEXDIR + "/" + DATA_FNAME), (word, ptr) -> {
+    		if (sortedWords.size() == wordPtrs.length) {
+    			wordPtrs = Arrays.copyOf(wordPtrs, 2 * wordPtrs.length);
+    		}
+    		wordPtrs[sortedWords.size()] = ptr;
+    		sortedWords.add(word);
+    		bufferedBytes += BYTES_PER_MERGED_TERM + 2 * word.length();
+    	});
+    	
+    	createDictionaryTable(sortedWords.size());
+    	MappedFile table = new MappedFile(new File(INDEXDIR + "/" + DICTIONARY_FNAME), true);
+    	for (int i=0; i<sortedWords.size(); i++) {
+    		String word = sortedWords.get(i);
+    		long hash = termHash(word);
+    		long slot = firstSlot(hash);
+    		int probes = 1;
+    		while(table.getLong(slot) != 0) {
+    			slot = nextSlot(slot);
+    			probes++;
+    		}
+    		table.putLong(slot, wordPtrs[i]);
+    		table.putLong(slot + 8, hash);
+    		table.putInt(slot + 16, word.length());
+    		dictionaryStats.record(probes);
     	}
+    	table.force();
+    	wordPtrs = null;
+    	
+    	writeTerms(sortedWords);
+    	clearPostingsCache();
+    	metrics.recordMerge(bytesIn, dataFile.length(), bufferedBytes, System.nanoTime() - start);
+    	bufferedBytes = 0;
+    	metrics.recordDictionary(dictionaryStats);
     }
     
-    public void lastMerge() {
-    	
-    	
+    /**
+     *  Write index to file after indexing is done.
+     */
+    public void cleanup() {
     	try {
-    		dataFile = new RandomAccessFile( "./index/data" + Integer.toString(dataFileCount), "rw" );
-    		System.err.println("Created data" + Integer.toString(dataFileCount));
-    		writeIndex(dataFile);
-    		
-    		try {
-        		merge_thread.join();
-        	} catch(Exception e) {
-        		e.printStackTrace();
-        	}
-    		
-    		
-    		merge_thread = new Merger(dataFileCount);
-    		merge_thread.start();
-    		
-    		try {
-        		merge_thread.join();
-        	} catch(Exception e) {
-        		e.printStackTrace();
-        	}
-    		
-    		
-    	} catch(Exception e) {
+    		writeDocuments();
+    	} catch (IOException e) {
     		e.printStackTrace();
     	}
     	
+    	if(!index.isEmpty()) {
+    		writeRun();
+    	}
     	
+    	try {
+    		mergeRuns();
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    	}
     	
-    	dataFileCount++;
-    	
-    	
-    	
-    	System.err.println("Last merge done");
-    }
-    
-    /**
-     *  Write index to file after indexing is done.
-     */
-    public void cleanup() {
-        //System.err.println( index.keySet().size() + " unique words" );
-        //System.err.print( "Writing index to disk..." );
-        //writeIndex();
-        System.err.println( "done!" );
-        //System.err.println( "aqui cambiar el nombre del fichero a data y hacer el dictionaryfile!" );
-        
-        
-        System.err.println(dataFileCount);
-        
-        lastMerge();
-        
-        renameLastMerge(dataFileCount);
-        
-        createDictionary();
-        
-        System.err.println("ALL DONE!!!");
+    	for (File run : runFiles) {
+    		run.delete();
+    	}
+    	runFiles.clear();
     }
 }
@@ -0,0 +1,85 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+
+/**
+ *   Sums the scores of documents term by term, in an array indexed by docID.
+ *
+ *   The array is reused from query to query: only the cells of the
+ *   documents touched by the last query are cleared, so a query costs the
+ *   number of postings it reads, not the number of documents.
+ */
+public class ScoreAccumulator {
+
+    /** scores[docID] is the score summed so far. */
+    private double[] scores = new double[0];
+
+    /** The documents that got a score. */
+    private final BitSet touched = new BitSet();
+
+
+    /**
+     *  Clears the scores of the last query and makes room for docIDs
+     *  lower than the given number of documents.
+     */
+    public void reset( int documents ) {
+        for ( int docID=touched.nextSetBit( 0 ); docID>=0; docID=touched.nextSetBit( docID + 1 )) {
+            scores[docID] = 0;
+        }
+        touched.clear();
+        if ( scores.length < documents ) {
+            scores = new double[documents];
+        }
+    }
+
+
+    /** Adds a score to a document. */
+    public void add( int docID, double score ) {
+        if ( docID >= scores.length ) {
+            scores = Arrays.copyOf( scores, Math.max( docID + 1, scores.length * 2 ));
+        }
+        scores[docID] += score;
+        touched.set( docID );
+    }
+
+
+    public double get( int docID ) {
+        return docID < scores.length ? scores[docID] : 0;
+    }
+
+
+    /** The sum of the scores of all documents. */
+    public double sum() {
+        double sum = 0;
+        for ( int docID=touched.nextSetBit( 0 ); docID>=0; docID=touched.nextSetBit( docID + 1 )) {
+            sum += scores[docID];
+        }
+        return sum;
+    }
+
+
+    /** The next touched docID from docID on, or -1 if there is none. */
+    public int nextDocument( int docID ) {
+        return touched.nextSetBit( docID );
+    }
+
+
+    /** Returns the touched documents with their scores, in docID order. */
+    public PostingsList toPostingsList() {
+        PostingsList answer = new PostingsList();
+        answer.list.ensureCapacity( touched.cardinality() );
+        for ( int docID=touched.nextSetBit( 0 ); docID>=0; docID=touched.nextSetBit( docID + 1 )) {
+            answer.add( new PostingsEntry( docID, scores[docID] ));
+        }
+        return answer;
+    }
+}
@@ -30,7 +30,7 @@ public class SearchGUI extends JFrame {
     private Query query;
 
     /**  The results of a search query. */
-    private PostingsList results;
+    private Postings results;
 
     /**  The query type (either intersection, phrase, or ranked). */
     QueryType queryType = QueryType.INTERSECTION_QUERY;
@@ -42,7 +42,7 @@ public class SearchGUI extends JFrame {
     NormalizationType normType = NormalizationType.NUMBER_OF_WORDS;
 
     /**  Max number of results to display. */
-    static final int MAX_RESULTS = 10;
+    static final int MAX_RESULTS = Searcher.RESULTS_PER_PAGE;
 
     /** Demarkator between file name and file contents in the file contents text area*/
     private static final String MARKER = "----------------------------------------------------";
@@ -162,22 +162,27 @@ public class SearchGUI extends JFrame {
                 // Turn the search string into a Query
                 String queryString = queryWindow.getText().toLowerCase().trim();
                 query = new Query( queryString );
-                // Take relevance feedback from the user into account (assignment 3)
-                // Check which documents the user has marked as relevant.
-                if ( box != null ) {
-                    boolean[] relevant = new boolean[box.length];
-                    for ( int i=0; i<box.length; i++ ) {
-                        if ( box[i] != null )
-                            relevant[i] = box[i].isSelected();
+                // Search and print results. Searches share the read lock of the
+                // index, since we don't want to search at the same time we're
+                // indexing new files (this might corrupt the index).
+                long startTime;
+                QueryTrace trace = QueryTrace.begin( queryString );
+                engine.indexLock.readLock().lock();
+                try {
+                    // Take relevance feedback from the user into account (assignment 3)
+                    // Check which documents the user has marked as relevant.
+                    if ( box != null ) {
+                        boolean[] relevant = new boolean[box.length];
+                        for ( int i=0; i<box.length; i++ ) {
+                            if ( box[i] != null )
+                                relevant[i] = box[i].isSelected();
+                        }
+                        query.relevanceFeedback( results, relevant, engine );
                     }
-                    query.relevanceFeedback( results, relevant, engine );
-                }
-                // Search and print results. Access to the index is synchronized since
-                // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
-                long startTime = System.currentTimeMillis();
-                synchronized ( engine.indexLock ) {
+                    startTime = System.currentTimeMillis();
                     results = engine.searcher.search( query, queryType, rankingType, normType );
+                } finally {
+                    engine.indexLock.readLock().unlock();
                 }
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 // Display the first few results + a button to see all results.
@@ -186,7 +191,12 @@ public class SearchGUI extends JFrame {
                 // might take a long time, if there are many results.
                 if ( results != null ) {
                     displayResults( MAX_RESULTS, elapsedTime/1000.0 );
-                } else {
+                }
+                if ( trace != null ) {
+                    trace.end();
+                    System.err.println( trace );
+                }
+                if ( results == null ) {
                     displayInfoText( "Found 0 matching document(s)" );
                     
                     if (engine.speller != null) {
@@ -310,11 +320,16 @@ public class SearchGUI extends JFrame {
      *  @param elapsedTime Shows how long time it took to compute the results.
      */
     void displayResults( int maxResultsToDisplay, double elapsedTime ) {
-        displayInfoText( String.format( "Found %d matching document(s) in %.3f seconds", results.size(), elapsedTime ));
+        if ( results instanceof RankedPostingsList && ((RankedPostingsList) results).isPruned() ) {
+            displayInfoText( String.format( "Top %d of at least %d matching document(s) in %.3f seconds",
+                                            results.size(), ((RankedPostingsList) results).matches(), elapsedTime ));
+        } else {
+            displayInfoText( String.format( "Found %d matching document(s) in %.3f seconds", results.size(), elapsedTime ));
+        }
         box = new JCheckBox[maxResultsToDisplay];
         int i;
         for ( i=0; i<results.size() && i<maxResultsToDisplay; i++ ) {
-            String description = i + ". " + displayableFileName( engine.index.docNames.get( results.get(i).docID ));
+            String description = i + ". " + displayableFileName( engine.index.getDocuments().name( results.get(i).docID ));
             if ( queryType == QueryType.RANKED_QUERY ) {
                 description += "   " + String.format( "%.5f", results.get(i).score );
             }
@@ -23,6 +23,18 @@ public class Searcher {
     
     HITSRanker hitsRanker;
     
+    /** How tf-idf ranked queries are evaluated. */
+    EvaluationType evaluationType = EvaluationType.TERM_AT_A_TIME;
+    
+    /** Number of results kept by the pruning evaluation types. */
+    int topK = 100;
+    
+    /** The results of the last queries, or null to always search. */
+    QueryCache queryCache;
+    
+    /** Number of results shown at first, by the GUI and as read by BatchSearch. */
+    public static final int RESULTS_PER_PAGE = 10;
+    
     /** Constructor */
     public Searcher( Index index, KGramIndex kgIndex, HITSRanker hitsRanker) {
         this.index = index;
@@ -31,49 +43,68 @@ public class Searcher {
     }
 
     /**
-     *  Searches the index for postings matching the query.
+     *  Searches the index for postings matching the query, or takes the
+     *  result from the query cache if it was computed since the index last
+     *  changed.
      *  @return A postings list representing the result of the query.
      */
-    public PostingsList search( Query query, QueryType queryType, RankingType rankingType, NormalizationType normalizationType ) {
+    public Postings search( Query query, QueryType queryType, RankingType rankingType, NormalizationType normalizationType ) {
+    	if ( queryCache == null ) {
+    		return evaluate( query, queryType, rankingType, normalizationType );
+    	}
+    	String key = QueryCache.key( query, queryType, rankingType, normalizationType, evaluationType, topK );
+    	long generation = index.getDocuments().getGeneration();
+    	Postings result = queryCache.get( key, generation );
+    	if ( result == null ) {
+    		result = evaluate( query, queryType, rankingType, normalizationType );
+    		queryCache.put( key, generation, result );
+    	}
+    	return result;
+    }
+    
+    /**
+     *  Searches the index for postings matching the query.
+     */
+    private Postings evaluate( Query query, QueryType queryType, RankingType rankingType, NormalizationType normalizationType ) {
     	
     	ArrayList<String> queries = query.getQueryTerms();
-    	ArrayList<PostingsList> postingsLists = new ArrayList<PostingsList>();
-    	ArrayList<PostingsList> postingsWildcarded = new ArrayList<PostingsList>();
-    	PostingsList p = new PostingsList();
+    	ArrayList<Postings> postingsLists = new ArrayList<Postings>();
+    	ArrayList<Postings> postingsWildcarded = new ArrayList<Postings>();
+    	ArrayList<Double> weights = new ArrayList<Double>();
+    	Postings p = new PostingsList();
     	
 		if(queryType==queryType.RANKED_QUERY){
 			for(String queryterm : queries) {
 				if(queryterm.contains("*")) {
-					List<String> list = kgIndex.getWildcardPostings(queryterm);
+					List<String> list = wildcardTerms(queryterm);
 	
 					postingsWildcarded.clear();
 					for(String s : list) {
-						p = index.getPostings(s);
-						if(p != null) {
-							p.weight = query.query_count.getOrDefault(queryterm, 1.0);
-						}
-						postingsLists.add(p);
+						postingsLists.add(index.getPostings(s));
+						weights.add(query.query_count.getOrDefault(queryterm, 1.0));
 					}
 				} else {
-					p = index.getPostings(queryterm);
-					if(p != null) {
-						p.weight = query.query_count.getOrDefault(queryterm, 1.0);
-					}
-					postingsLists.add(p);
+					postingsLists.add(index.getPostings(queryterm));
+					weights.add(query.query_count.getOrDefault(queryterm, 1.0));
 				}
 			}
 		} else {
 			for(String queryterm : queries) {
     		
 				if(queryterm.contains("*")) {
-					List<String> list = kgIndex.getWildcardPostings(queryterm);
+					List<String> list = wildcardTerms(queryterm);
 
 					postingsWildcarded.clear();
 					for(String s : list) {
 						postingsWildcarded.add(index.getPostings(s));
 					}
 
-					p = postingsUnion(postingsWildcarded, queryType);
+					QueryTrace.enter(QueryTrace.Stage.MERGE);
+					try {
+						p = postingsUnion(postingsWildcarded, queryType);
+					} finally {
+						QueryTrace.exit(QueryTrace.Stage.MERGE);
+					}
 				} else {
 					p = index.getPostings(queryterm);
 				}
@@ -90,7 +121,12 @@ public class Searcher {
     		if(postingsLists.size() == 1) {
     			return postingsLists.get(0);
     		} else if (postingsLists.size() > 1){
-    			return postingsIntersection(postingsLists);
+    			QueryTrace.enter(QueryTrace.Stage.MERGE);
+    			try {
+    				return postingsIntersection(postingsLists);
+    			} finally {
+    				QueryTrace.exit(QueryTrace.Stage.MERGE);
+    			}
     		} else {
     			System.err.println("Wrong query size.");
     		}
@@ -100,293 +136,176 @@ public class Searcher {
     		if(postingsLists.size() == 1) {
     			return postingsLists.get(0);
     		} else if (postingsLists.size() > 1){
-				return phrase(postingsLists);
+    			QueryTrace.enter(QueryTrace.Stage.MERGE);
+    			try {
+    				return phrase(postingsLists);
+    			} finally {
+    				QueryTrace.exit(QueryTrace.Stage.MERGE);
+    			}
     		}
     		
     	} else if ( queryType == QueryType.RANKED_QUERY ) {
-    		return RankedSearch.search(postingsLists, index, rankingType, normalizationType, hitsRanker);
+    		double[] termWeights = weights.stream().mapToDouble(Double::doubleValue).toArray();
+    		QueryTrace.enter(QueryTrace.Stage.SCORE);
+    		try {
+    			return RankedSearch.search(postingsLists, termWeights, index, rankingType, normalizationType, hitsRanker, evaluationType, topK);
+    		} finally {
+    			QueryTrace.exit(QueryTrace.Stage.SCORE);
+    		}
     	}
     	
     	return null;
     }
     
-    private PostingsList postingsIntersection(ArrayList<PostingsList> postingsLists) {
-    	PostingsList answer;
-
-    	Iterator<PostingsList> iter = postingsLists.iterator();
+    /**
+     *  The terms of the index matching a wildcard term, taken from the
+     *  sorted terms of the index when it has them and from the k-gram
+     *  index otherwise.
+     */
+    private List<String> wildcardTerms(String queryterm) {
+    	QueryTrace.enter(QueryTrace.Stage.WILDCARD);
+    	try {
+    		TermDictionary terms = index.getTerms();
+    		if (terms != null) {
+    			return terms.matching(queryterm);
+    		}
+    		return kgIndex.getWildcardPostings(queryterm);
+    	} finally {
+    		QueryTrace.exit(QueryTrace.Stage.WILDCARD);
+    	}
+    }
+    
+    /**
+     *  Intersects the postings lists of all terms. The lists are taken from
+     *  the shortest to the longest, so the intermediate answers stay as small
+     *  as possible, and the work stops as soon as an answer is empty.
+     */
+    private Postings postingsIntersection(ArrayList<Postings> postingsLists) {
     	
-    	PostingsList p1 = iter.next();
-    	PostingsList p2;
+    	if(postingsLists.contains(null)) {
+    		return null;
+    	}
     	
-    	PostingsEntry postingsEntry1, postingsEntry2;
+    	ArrayList<Postings> byFrequency = new ArrayList<Postings>(postingsLists);
+    	byFrequency.sort(Comparator.comparingInt(Postings::size));
     	
-    	int pe1_idx, pe2_idx;
+    	Postings answer = byFrequency.get(0);
+    	for(int i=1; i<byFrequency.size() && answer.size() > 0; i++) {
+    		answer = intersect(answer, byFrequency.get(i));
+    	}
     	
-    	do {
-    		
-    		answer = new PostingsList();
-    		
-    		p2 = iter.next();
-    		
-    		
-    		if(p1==null || p2==null) {
-    			return null;
-    		}
-    		
-    		
-    		pe1_idx = 0;
-    		pe2_idx = 0;
-    		
-    		postingsEntry1 = p1.get(pe1_idx++);
-    		postingsEntry2 = p2.get(pe2_idx++);
-    		
-			if( postingsEntry1.docID == postingsEntry2.docID ) {
-				answer.add(postingsEntry1);
-				
-				if(pe1_idx >= p1.size()) {
-					postingsEntry1 = null;
-				} else {
-					postingsEntry1 = p1.get(pe1_idx++);
-				}
-				
-				if(pe2_idx >= p2.size()) {
-					postingsEntry2 = null;
-				} else {
-					postingsEntry2 = p2.get(pe2_idx++);
-				}
-				
-			}
+    	return answer;
+    }
+    
+    /**
+     *  Intersects two postings lists, p1 being the shorter one. Each cursor
+     *  gallops to the docID under the other one, so runs of docIDs that only
+     *  one list holds are jumped over instead of stepped through.
+     */
+    private PostingsList intersect(Postings p1, Postings p2) {
+    	PostingsList answer = new PostingsList();
+    	
+    	int pe1_idx = 0;
+    	int pe2_idx = 0;
+    	
+    	while( pe1_idx < p1.size() ) {
+    		int docID = p1.get(pe1_idx).docID;
     		
-			while( postingsEntry1 != null && postingsEntry2 != null ) {
-    			
-    			if( postingsEntry1.docID == postingsEntry2.docID ) {
-    				answer.add(postingsEntry1);
-    				
-    				if(pe1_idx >= p1.size()) {
-    					postingsEntry1 = null;
-    				} else {
-    					postingsEntry1 = p1.get(pe1_idx++);
-    				}
-    				
-    				if(pe2_idx >= p2.size()) {
-    					postingsEntry2 = null;
-    				} else {
-    					postingsEntry2 = p2.get(pe2_idx++);
-    				}
-    				
-    				
-    			} else if ( postingsEntry1.docID < postingsEntry2.docID ) {
-    				if(pe1_idx >= p1.size()) {
-    					postingsEntry1 = null;
-    				} else {
-    					postingsEntry1 = p1.get(pe1_idx++);
-    				}
-    			} else {
-    				if(pe2_idx >= p2.size()) {
-    					postingsEntry2 = null;
-    				} else {
-    					postingsEntry2 = p2.get(pe2_idx++);
-    				}
-    			}
+    		pe2_idx = p2.advance(pe2_idx, docID);
+    		if( pe2_idx >= p2.size() ) {
+    			break;
     		}
-			
-			
     		
-    		if( answer.size() > 0 && iter.hasNext() ) {
-    			p1 = answer;
+    		if( p2.get(pe2_idx).docID == docID ) {
+    			answer.add(p1.get(pe1_idx));
+    			pe1_idx++;
+    			pe2_idx++;
+    		} else {
+    			pe1_idx = p1.advance(pe1_idx, p2.get(pe2_idx).docID);
     		}
-    		
-    		
-    	} while( iter.hasNext() );
+    	}
     	
     	return answer;
     }
 
-	private PostingsList phrase(ArrayList<PostingsList> postingsLists) {
+	/**
+	 *  Finds the documents where the terms appear next to each other, in order.
+	 *
+	 *  Documents are taken one at a time: the cursors of all lists gallop to
+	 *  the next docID they share, and only then are positions compared. The
+	 *  positions where the phrase could start (the offsets of the first term)
+	 *  are kept in an int buffer. For the k-th term, one merge over the
+	 *  buffer and the sorted offsets of that term keeps the starts p such
+	 *  that p+k is an offset of the term, so a document costs the total
+	 *  number of its offsets.
+	 */
+	private PostingsList phrase(ArrayList<Postings> postingsLists) {
 
 		if(postingsLists.stream().anyMatch(postingsList -> postingsList == null)) return null;
 
 		PostingsList answer = new PostingsList();
 
-		int pl_idx = 0;
-		int curr_offset = 1;
-		int pe1_idx = 0;
-		int pe2_idx = 0;
-		boolean finished = false;
-
-		HashMap<Integer, ArrayList<Integer>> validInitialOffsets = new HashMap<Integer, ArrayList<Integer>>();
-		ArrayList<Integer> validOffsetPE = new ArrayList<Integer>();
+		Postings first = postingsLists.get(0);
+		int[] cursors = new int[postingsLists.size()];
+		int[] starts = new int[16];
 
-		PostingsList p1 = postingsLists.get(0);
+		while(cursors[0] < first.size()) {
 
-		for ( PostingsEntry pe : p1.list ) {
-			validInitialOffsets.put(pe.docID, pe.offsetList);
-		}
+			PostingsEntry pe1 = first.get(cursors[0]);
+			int docID = pe1.docID;
+			int nextDocID = docID;
 
-		PostingsList p2;
-
-		PostingsEntry pe1;
-		PostingsEntry pe2;
-
-
-		while(++pl_idx < postingsLists.size()) {
-
-			answer = new PostingsList();
-
-			p2 = postingsLists.get(pl_idx);
-
-			pe1_idx = 0;
-			pe2_idx = 0;
-
-			while(pe1_idx < p1.size() && pe2_idx < p2.size()) {
-
-				pe1 = p1.get(pe1_idx);
-				pe2 = p2.get(pe2_idx);
-
-				if(pe1.docID == pe2.docID) {
-
-					finished = false;
-					validOffsetPE.clear();
-					for( int offset1 : validInitialOffsets.get(pe1.docID) ) {
-						for( int offset2 : pe2.offsetList ) {
-							if(offset2 - offset1 == curr_offset) {
-								if( ! finished ) answer.add(pe1);
-								validOffsetPE.add(offset1);
-								finished = true;
-							}
-						}
-					}
-
-					validInitialOffsets.put(pe1.docID, new ArrayList<>(validOffsetPE));
-
-					pe1_idx++;
-					pe2_idx++;
-
-				} else if (pe1.docID < pe2.docID) {
-					pe1_idx++;
-				} else {
-					pe2_idx++;
+			for(int k=1; k<postingsLists.size(); k++) {
+				Postings p2 = postingsLists.get(k);
+				cursors[k] = p2.advance(cursors[k], docID);
+				if(cursors[k] >= p2.size()) {
+					return answer;
+				}
+				if(p2.get(cursors[k]).docID != docID) {
+					nextDocID = p2.get(cursors[k]).docID;
+					break;
 				}
-
-				
 			}
-			curr_offset++;
-			p1 = answer;
-		}
-
-		return answer;
-	}
-    
-    private PostingsList postingsPhrase(ArrayList<PostingsList> postingsLists) {
-    	//System.err.println("\n\n");
-    	//System.err.println("PostingsPhrase");
-    	
-    	PostingsList answer;
-    	
-    	Iterator<PostingsList> iter = postingsLists.iterator();
-    	
-    	PostingsList p1 = iter.next();
-
-		if(p1==null){
-			return null;
-		}
-
-    	PostingsList p2; // = iter.next(); I need to put this inside the do while so that after the first one you can keep iterating.
-    	
-    	int current_offset = 1; //distance from the initial word in the query.
-    	int pe1_idx, pe2_idx;
-    	boolean finished;
-    	
-    	PostingsEntry postingsEntry1, postingsEntry2;
-    	
-    	do {
-    		
-    		answer = new PostingsList();
-    		
-    		p2 = iter.next();
 
-			if(p2==null){
-				return null;
+			if(nextDocID != docID) {
+				cursors[0] = first.advance(cursors[0], nextDocID);
+				continue;
 			}
-    		
-    		pe1_idx = 0;
-    		pe2_idx = 0;
-    		
-    		postingsEntry1 = p1.get(pe1_idx++);
-    		postingsEntry2 = p2.get(pe2_idx++);
-    		
-			if( postingsEntry1.docID == postingsEntry2.docID ) {
-				//System.err.println("Match in the first one!");
-				
-				finished = false;
-				for( int offset1 : postingsEntry1.offsetList ) {
-					for( int offset2 : postingsEntry2.offsetList ) {
-						if(offset1 + current_offset == offset2) {
-							
 
-							answer.add(postingsEntry1);
-							finished = true;
-							break;
-						}
+			if(starts.length < pe1.offsetCount) {
+				starts = new int[Math.max(pe1.offsetCount, starts.length * 2)];
+			}
+			System.arraycopy(pe1.offsets, 0, starts, 0, pe1.offsetCount);
+			int startCount = pe1.offsetCount;
+
+			for(int k=1; k<postingsLists.size() && startCount > 0; k++) {
+				PostingsEntry pe2 = postingsLists.get(k).get(cursors[k]);
+				int kept = 0;
+				int j = 0;
+				for(int i=0; i<startCount; i++) {
+					int target = starts[i] + k;
+					while(j < pe2.offsetCount && pe2.offsets[j] < target) {
+						j++;
 					}
-					if(finished) {
-						break;
+					if(j < pe2.offsetCount && pe2.offsets[j] == target) {
+						starts[kept++] = starts[i];
 					}
 				}
-				postingsEntry1 = p1.get(pe1_idx++);
-				postingsEntry2 = p2.get(pe2_idx++);
+				startCount = kept;
 			}
-    		
-			while( pe1_idx < p1.size() && pe2_idx < p2.size() ) {
-    			
-    			//System.err.println("p1 docID: " + postingsEntry1.docID + " ||| p2 docID: " + postingsEntry2.docID);
-    			
-    			if( postingsEntry1.docID == postingsEntry2.docID ) {
-    				//System.err.println("Found match!");
-    				
-    				finished = false;
-    				for( int offset1 : postingsEntry1.offsetList ) {
-    					for( int offset2 : postingsEntry2.offsetList ) {
-    						if(offset1 + current_offset == offset2) {
-								//System.err.println(index.docNames.get(postingsEntry1.docID));
-								//System.err.println(current_offset);
 
-    							answer.add(postingsEntry1);
-    							finished = true;
-    							break;
-    						}
-    					}
-    					if(finished) {
-    						break;
-    					}
-    				}
-    				
-    				postingsEntry1 = p1.get(pe1_idx++);
-    				postingsEntry2 = p2.get(pe2_idx++);
-    			} else if ( postingsEntry1.docID < postingsEntry2.docID ) {
-    				postingsEntry1 = p1.get(pe1_idx++);
-    			} else {
-    				postingsEntry2 = p2.get(pe2_idx++);
-    			}
-    		}
-    		
-    		if( answer.size() > 0 && iter.hasNext() ) {
-    			//System.out.println("Answer size: " + answer.size());
-    			p1 = answer;
-    			//System.err.println("Onto the next word in the query.");
-        		current_offset++;
-    		}
-    		
-    	} while( iter.hasNext() ); // Used do while because the 2 long query wouldnt execute otherwise.
-    	
-    	//System.err.println("Postings phrase size: " + Integer.toString(answer.size()));
-    	
-    	return answer;
-    }
+			if(startCount > 0) {
+				answer.add(pe1);
+			}
+			cursors[0]++;
+		}
+
+		return answer;
+	}
 
 	
     
-    public PostingsList postingsUnion(ArrayList<PostingsList> postingsLists, QueryType queryType) {
+    public Postings postingsUnion(ArrayList<Postings> postingsLists, QueryType queryType) {
     	
     	//System.err.println("Executing union of size: " + Integer.toString(postingsLists.size()));
     	
@@ -394,7 +313,7 @@ public class Searcher {
     		return postingsLists.get(0);
     	}
     	
-    	PostingsList answer = postingsLists.get(0);
+    	Postings answer = postingsLists.get(0);
     	
     	int idx = 1;
     	
@@ -406,7 +325,7 @@ public class Searcher {
     	
     }
     
-    public PostingsList mergePostingsLists(PostingsList p1, PostingsList p2, QueryType queryType) {
+    public Postings mergePostingsLists(Postings p1, Postings p2, QueryType queryType) {
     	
 		
     	PostingsList answer = new PostingsList();
@@ -425,7 +344,6 @@ public class Searcher {
     	int p2_idx = 0;
     	
     	PostingsEntry postingsEntry1, postingsEntry2;
-    	ArrayList<Integer> offsets;
     	
     	while(p1_idx < p1.size() && p2_idx < p2.size()) {
     		
@@ -435,8 +353,7 @@ public class Searcher {
     		if(postingsEntry1.docID == postingsEntry2.docID) {
     			
 				if(queryType==queryType.PHRASE_QUERY){
-					offsets = mergeOffsets(postingsEntry1.offsetList, postingsEntry2.offsetList);
-    				answer.add(new PostingsEntry(postingsEntry1.docID, offsets));
+					answer.add(PostingsEntry.unionOffsets(postingsEntry1, postingsEntry2));
 				} else {
 					answer.add(new PostingsEntry(postingsEntry1.docID));
 				}
@@ -469,12 +386,4 @@ public class Searcher {
     	return answer;
 	}
     
-    public ArrayList<Integer> mergeOffsets(ArrayList<Integer> offsets1, ArrayList<Integer> offsets2) {
-		HashSet<Integer> hashset = new HashSet<>();
-		hashset.addAll(offsets1);
-		hashset.addAll(offsets2);
-		
-		return new ArrayList<>(hashset);
-	}
-    
 }
\ No newline at end of file
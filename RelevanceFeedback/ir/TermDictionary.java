@@ -0,0 +1,407 @@
+/*
+ *   This file is part of the computer assignment for the
+ *   Information Retrieval course at KTH.
+ *
+ *   Damian Valle, 2021
+ */
+
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+
+/**
+ *   The terms of an index in sorted order, to answer wildcard queries
+ *   without the k-gram index.
+ *
+ *   The terms are kept twice, as they are and reversed, each in a
+ *   front-coded list: blocks of BLOCK_SIZE sorted terms where the first
+ *   term is stored whole and every other one as the number of chars it
+ *   shares with the previous term and the UTF-8 bytes of the rest. The
+ *   first terms of the blocks are kept decoded, so a binary search finds
+ *   the block of a term and only that block is decoded.
+ *
+ *   All terms with a given prefix are a range of the sorted list, and
+ *   all terms with a given suffix a range of the reversed one. A wildcard
+ *   pattern like "univ*", "*ity" or "un*ty" is answered by scanning the
+ *   smaller of the two ranges and checking the rest of the pattern on
+ *   every term found there.
+ *
+ *   The dictionary cannot be changed once built. It is saved next to the
+ *   hash dictionary of a persistent index, see write() and read().
+ */
+public class TermDictionary {
+
+    /** Identifies a terms file, "IRTD". */
+    public static final int MAGIC = 0x49525444;
+
+    /** Version of the terms file format. */
+    public static final int VERSION = 1;
+
+    /** Number of terms in a front-coded block. */
+    public static final int BLOCK_SIZE = 16;
+
+    /** The terms, and the terms reversed. */
+    private final FrontCodedList forward;
+    private final FrontCodedList reversed;
+
+
+    /**
+     *  Builds the dictionary of the given terms, in any order and possibly
+     *  with duplicates.
+     */
+    public TermDictionary( Collection<String> terms ) {
+        String[] sorted = terms.toArray( new String[0] );
+        Arrays.sort( sorted );
+        forward = new FrontCodedList( distinct( sorted ));
+        String[] backwards = new String[sorted.length];
+        for ( int i=0; i<sorted.length; i++ ) {
+            backwards[i] = reverse( sorted[i] );
+        }
+        Arrays.sort( backwards );
+        reversed = new FrontCodedList( distinct( backwards ));
+    }
+
+
+    private TermDictionary( FrontCodedList forward, FrontCodedList reversed ) {
+        this.forward = forward;
+        this.reversed = reversed;
+    }
+
+
+    /** Drops the repeated terms of a sorted array. */
+    private static String[] distinct( String[] sorted ) {
+        int size = 0;
+        for ( int i=0; i<sorted.length; i++ ) {
+            if ( size == 0 || !sorted[i].equals( sorted[size - 1] )) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf( sorted, size );
+    }
+
+
+    /** The term with its chars in reverse order, surrogate pairs kept. */
+    static String reverse( String term ) {
+        return new StringBuilder( term ).reverse().toString();
+    }
+
+
+    /** Number of terms. */
+    public int size() {
+        return forward.size;
+    }
+
+
+    public boolean contains( String term ) {
+        int i = forward.lowerBound( term );
+        return i < forward.size && forward.term( i ).equals( term );
+    }
+
+
+    /** The terms starting with prefix, in sorted order. */
+    public List<String> withPrefix( String prefix ) {
+        return matching( prefix + "*" );
+    }
+
+
+    /**
+     *  The terms matching a pattern where * stands for any number of chars,
+     *  in sorted order. A pattern without * only matches itself.
+     */
+    public List<String> matching( String pattern ) {
+        String[] parts = pattern.split( "\\*", -1 );
+        if ( parts.length == 1 ) {
+            return contains( pattern ) ? List.of( pattern ) : List.of();
+        }
+        String prefix = parts[0];
+        String suffix = reverse( parts[parts.length - 1] );
+
+        int prefixFrom = forward.lowerBound( prefix );
+        int prefixTo = forward.lowerBound( successor( prefix ));
+        int suffixFrom = reversed.lowerBound( suffix );
+        int suffixTo = reversed.lowerBound( successor( suffix ));
+
+        ArrayList<String> terms = new ArrayList<String>();
+        if ( prefixTo - prefixFrom <= suffixTo - suffixFrom ) {
+            forward.scan( prefixFrom, prefixTo, term -> {
+                if ( matches( term, parts )) {
+                    terms.add( term );
+                }
+            });
+        } else {
+            reversed.scan( suffixFrom, suffixTo, backwards -> {
+                String term = reverse( backwards );
+                if ( matches( term, parts )) {
+                    terms.add( term );
+                }
+            });
+            Collections.sort( terms );
+        }
+        return terms;
+    }
+
+
+    /**
+     *  The first string after all strings starting with prefix, or null
+     *  if there is none.
+     */
+    private static String successor( String prefix ) {
+        int end = prefix.length();
+        while ( end > 0 && prefix.charAt( end - 1 ) == Character.MAX_VALUE ) {
+            end--;
+        }
+        if ( end == 0 ) {
+            return null;
+        }
+        return prefix.substring( 0, end - 1 ) + (char)( prefix.charAt( end - 1 ) + 1 );
+    }
+
+
+    /**
+     *  Tells whether a term matches the parts of a pattern between its
+     *  stars: it starts with the first, ends with the last, and has the
+     *  others in order in between.
+     */
+    static boolean matches( String term, String[] parts ) {
+        String prefix = parts[0];
+        String suffix = parts[parts.length - 1];
+        if ( term.length() < prefix.length() + suffix.length() || !term.startsWith( prefix ) || !term.endsWith( suffix )) {
+            return false;
+        }
+        int from = prefix.length();
+        int end = term.length() - suffix.length();
+        for ( int p=1; p<parts.length-1; p++ ) {
+            int at = term.indexOf( parts[p], from );
+            if ( at < 0 || at + parts[p].length() > end ) {
+                return false;
+            }
+            from = at + parts[p].length();
+        }
+        return true;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Writes the dictionary to a file.
+     */
+    public void write( File file ) throws IOException {
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file )))) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            forward.write( out );
+            reversed.write( out );
+        }
+    }
+
+
+    /**
+     *  Reads a dictionary written by write().
+     */
+    public static TermDictionary read( File file ) throws IOException {
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file )))) {
+            if ( in.readInt() != MAGIC ) {
+                throw new IOException( file + " is not a terms file" );
+            }
+            int version = in.readInt();
+            if ( version != VERSION ) {
+                throw new IOException( "Unsupported terms file version " + version + " in " + file );
+            }
+            FrontCodedList forward = FrontCodedList.read( in );
+            FrontCodedList reversed = FrontCodedList.read( in );
+            return new TermDictionary( forward, reversed );
+        }
+    }
+
+
+    /**
+     *   A sorted list of distinct strings, front-coded in blocks.
+     */
+    private static class FrontCodedList {
+
+        final int size;
+
+        /** The encoded blocks, back to back. */
+        final byte[] data;
+
+        /** Where every block starts in data. */
+        final int[] blockStarts;
+
+        /** The first term of every block. */
+        final String[] heads;
+
+
+        FrontCodedList( String[] terms ) {
+            size = terms.length;
+            int blocks = ( size + BLOCK_SIZE - 1 ) / BLOCK_SIZE;
+            blockStarts = new int[blocks];
+            heads = new String[blocks];
+            PostingsCodec.Encoder out = new PostingsCodec.Encoder();
+            for ( int i=0; i<size; i++ ) {
+                int shared = 0;
+                if ( i % BLOCK_SIZE == 0 ) {
+                    blockStarts[i / BLOCK_SIZE] = out.size;
+                    heads[i / BLOCK_SIZE] = terms[i];
+                } else {
+                    shared = sharedPrefix( terms[i - 1], terms[i] );
+                    out.putVarInt( shared );
+                }
+                byte[] rest = terms[i].substring( shared ).getBytes( StandardCharsets.UTF_8 );
+                out.putVarInt( rest.length );
+                out.put( rest );
+            }
+            data = Arrays.copyOf( out.bytes, out.size );
+        }
+
+
+        private FrontCodedList( int size, byte[] data, int[] blockStarts ) {
+            this.size = size;
+            this.data = data;
+            this.blockStarts = blockStarts;
+            heads = new String[blockStarts.length];
+            ByteBuffer buffer = ByteBuffer.wrap( data );
+            for ( int b=0; b<blockStarts.length; b++ ) {
+                buffer.position( blockStarts[b] );
+                heads[b] = readRest( buffer );
+            }
+        }
+
+
+        /**
+         *  Number of chars two strings share at their start, not counting
+         *  half of a surrogate pair.
+         */
+        private static int sharedPrefix( String a, String b ) {
+            int n = Math.min( a.length(), b.length() );
+            int shared = 0;
+            while ( shared < n && a.charAt( shared ) == b.charAt( shared )) {
+                shared++;
+            }
+            if ( shared > 0 && Character.isHighSurrogate( a.charAt( shared - 1 ))) {
+                shared--;
+            }
+            return shared;
+        }
+
+
+        /** Reads the length and the bytes of a term or of its rest. */
+        private static String readRest( ByteBuffer buffer ) {
+            int length = PostingsCodec.getVarInt( buffer );
+            String rest = new String( buffer.array(), buffer.position(), length, StandardCharsets.UTF_8 );
+            buffer.position( buffer.position() + length );
+            return rest;
+        }
+
+
+        /** Reads the term after the given one in its block. */
+        private static String readNext( ByteBuffer buffer, String previous ) {
+            int shared = PostingsCodec.getVarInt( buffer );
+            return previous.substring( 0, shared ) + readRest( buffer );
+        }
+
+
+        /**
+         *  Calls consumer with the terms from index from up to index to, in
+         *  order, decoding the blocks they are in.
+         */
+        void scan( int from, int to, Consumer<String> consumer ) {
+            ByteBuffer buffer = ByteBuffer.wrap( data );
+            String term = null;
+            for ( int i=from-from%BLOCK_SIZE; i<to; i++ ) {
+                if ( i % BLOCK_SIZE == 0 ) {
+                    buffer.position( blockStarts[i / BLOCK_SIZE] );
+                    term = readRest( buffer );
+                } else {
+                    term = readNext( buffer, term );
+                }
+                if ( i >= from ) {
+                    consumer.accept( term );
+                }
+            }
+        }
+
+
+        /** The ith term. */
+        String term( int i ) {
+            ByteBuffer buffer = ByteBuffer.wrap( data );
+            buffer.position( blockStarts[i / BLOCK_SIZE] );
+            String term = readRest( buffer );
+            for ( int j=i-i%BLOCK_SIZE+1; j<=i; j++ ) {
+                term = readNext( buffer, term );
+            }
+            return term;
+        }
+
+
+        /**
+         *  The index of the first term not before key, or size if there is
+         *  none. A null key comes after all terms.
+         */
+        int lowerBound( String key ) {
+            if ( key == null ) {
+                return size;
+            }
+            // The last block whose first term is before key
+            int low = 0;
+            int high = heads.length - 1;
+            int block = -1;
+            while ( low <= high ) {
+                int mid = ( low + high ) >>> 1;
+                if ( heads[mid].compareTo( key ) < 0 ) {
+                    block = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if ( block < 0 ) {
+                return 0;
+            }
+            int end = Math.min( size, ( block + 1 ) * BLOCK_SIZE );
+            ByteBuffer buffer = ByteBuffer.wrap( data );
+            buffer.position( blockStarts[block] );
+            String term = readRest( buffer );
+            for ( int i=block*BLOCK_SIZE+1; i<end; i++ ) {
+                term = readNext( buffer, term );
+                if ( term.compareTo( key ) >= 0 ) {
+                    return i;
+                }
+            }
+            return end;
+        }
+
+
+        void write( DataOutputStream out ) throws IOException {
+            out.writeInt( size );
+            out.writeInt( blockStarts.length );
+            for ( int start : blockStarts ) {
+                out.writeInt( start );
+            }
+            out.writeInt( data.length );
+            out.write( data );
+        }
+
+
+        static FrontCodedList read( DataInputStream in ) throws IOException {
+            int size = in.readInt();
+            int[] blockStarts = new int[in.readInt()];
+            for ( int b=0; b<blockStarts.length; b++ ) {
+                blockStarts[b] = in.readInt();
+            }
+            byte[] data = new byte[in.readInt()];
+            in.readFully( data );
+            return new FrontCodedList( size, data, blockStarts );
+        }
+    }
+}
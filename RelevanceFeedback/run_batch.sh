@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp classes -Xmx1g ir.BatchSearch -d ../../SE/lab1/datasets/davisWiki -p patterns.txt -queries batch_queries.txt -querythreads 4 -repeat 10 "$@"
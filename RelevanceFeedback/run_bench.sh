@@ -0,0 +1,6 @@
+#!/bin/sh
+if ! [ -d classes-bench ];
+then
+   mkdir classes-bench
+fi
+javac -encoding UTF-8 -cp . -d classes-bench ir/*.java bench/ir/*.java && java -cp classes-bench -Xmx1g ir.SearchBenchmark "$@"